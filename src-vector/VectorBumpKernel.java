@@ -0,0 +1,50 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Implementation of RobotRace.BumpKernel with the Vector API, which adds the
+ * shape of a bump to as many vertices at once as the vector registers of the
+ * processor hold doubles.
+ *
+ * This class needs JDK 16 or later, so it is compiled separately from the
+ * rest of the project with the compile-vector target in build.xml.
+ * RobotRace.BumpRows loads it when the program runs with
+ * {@code --add-modules jdk.incubator.vector}, and uses its scalar kernel
+ * otherwise.
+ *
+ * Every lane performs the same operations in the same order as the scalar
+ * kernel, so both give exactly the same heights.
+ */
+public class VectorBumpKernel implements RobotRace.BumpKernel {
+
+    // A bump covers about 15 vertices of a row, which fill 256 bit vectors
+    // better than wider ones; those were slower in BumpRows.main.
+    final static private VectorSpecies<Double> SPECIES
+            = (DoubleVector.SPECIES_PREFERRED.vectorBitSize() > 256)
+            ? DoubleVector.SPECIES_256 : DoubleVector.SPECIES_PREFERRED;
+    final static private double[] SHAPE = RobotRace.Bump.SHAPE; // coefficients of B
+
+    @Override
+    public void add(double yb, double h, double dq, double scale,
+            double[] ys, double[] out, int from, int to) {
+        int k = from;
+        int end = from + SPECIES.loopBound(to - from + 1); // end of full vectors
+        for (; k < end; k += SPECIES.length()) {
+            DoubleVector d = DoubleVector.fromArray(SPECIES, ys, k).sub(yb);
+            DoubleVector q = d.mul(d).mul(scale).add(dq);
+            // Evaluate B(q) by Horner's rule, like Bump.B.
+            DoubleVector b = DoubleVector.broadcast(SPECIES, SHAPE[SHAPE.length - 1]);
+            for (int c = SHAPE.length - 2; c >= 0; c--) {
+                b = q.mul(b).add(SHAPE[c]);
+            }
+            DoubleVector.fromArray(SPECIES, out, k).add(b.mul(h)).intoArray(out, k);
+        }
+        // Add the remaining vertices one at a time.
+        RobotRace.BumpRows.SCALAR.add(yb, h, dq, scale, ys, out, k, to);
+    }
+
+    @Override
+    public String toString() {
+        return "vector (" + SPECIES.length() + " lanes)";
+    }
+}
@@ -1,4 +1,5 @@
 
+import com.jogamp.common.nio.Buffers;
 import com.jogamp.opengl.util.gl2.GLUT;
 import com.jogamp.opengl.util.texture.Texture;
 import com.jogamp.opengl.util.texture.TextureIO;
@@ -6,16 +7,31 @@ import java.awt.Color;
 import java.awt.Point;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
 import static java.lang.Math.*;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.CRC32;
 import static javax.media.opengl.GL.*;
 import javax.media.opengl.GL2;
 import static javax.media.opengl.GL2.*;
@@ -56,16 +72,76 @@ import robotrace.*;
 public class RobotRace extends Base {
 
     double fovy = -1; // vertical field of view angle
-    Robot[] robots; // array to store drawable robots
-    final private static int NUMROBOTS = 4; // size of robots array
+    Robot robot; // robot that draws all robots in the race, one at a time
+    final private static int LANES = 4; // number of lanes on the track
+    // Number of robots in the race, set with -Drobotrace.robots=n.
+    final private static int NUMROBOTS = robotCount();
+    // Number of robots above which they are drawn instanced.
+    final private static int INSTANCED = 64;
+    final private static double ROBOTSIZE = 2.5; // bound on a robot's extent
+    final private static float TICK = 1 / 30f; // length of a simulation step
+    final private static int MAXTICKS = 10; // maximum simulation steps per frame
     final private static int NUMBUMPS = 500; // number of bumps in terrain
+    // Vertices along a side of the terrain, set with -Drobotrace.terrain=n.
+    final private static int TERRAINSIZE = terrainSize();
+    final private static int CURVESAMPLES = 1024; // samples per cached curve
+    // Quality level of the scene, set with -Drobotrace.quality=low|medium|high.
+    final private static Quality QUALITY = Quality.fromProperty();
     Vector eye; // current location of the camera
     Vector light = new Vector(0, 10, 10); // current location of the light source
     Matrix m_0 = null; // matrix to transfer from world to camera coordinates
     Track t; // the track the robots are moving on
+    Curve[] curves; // cached curves of the tracks, indexed by gs.trackNr
     float phi_old, theta_old; // holds old values for phi and theta
     Texture landscape; // 1D texture for landscape
     Terrain terrain; // terrain that's being shown
+    Frustum frustum = new Frustum(); // view frustum of the current camera
+    MeshLibrary meshes = new MeshLibrary(); // meshes of unit primitives
+    // Draws many robots at once, all in silver.
+    RobotInstancer instancer = new RobotInstancer(Material.SILVER);
+    int drawnChunks, drawnCamMode; // track chunks drawn last reported, and mode
+    float tAnim_old = 0; // value for tAnim when last simulating
+    int frames = 0; // frames drawn since the frame rate was last reported
+    float tReported = 0; // value for tAnim when the frame rate was reported
+    float accumulator = 0; // time that has passed but is not simulated yet
+    RobotSwarm swarm; // simulated state of the robots
+    double[] points, normals; // points and normals of the curve at the robots
+    double[] orientation = new double[16]; // model matrix of a robot
+    double[] robotLow = new double[3], robotHigh = new double[3]; // robot bounds
+    float[] projection = new float[16]; // projection matrix of the camera
+    float[] modelview = new float[16]; // modelview matrix of the camera
+
+    /**
+     * Quality levels of the scene. Lower levels trade fidelity for speed on
+     * slower machines.
+     */
+    public enum Quality {
+
+        LOW(0.05), MEDIUM(0.01), HIGH(0.002);
+        // Maximum distance between the track and the polygons displaying it.
+        final public double tolerance;
+
+        Quality(double tolerance) {
+            this.tolerance = tolerance;
+        }
+
+        /**
+         * Reads the quality level from the robotrace.quality system property.
+         * Unknown levels are reported and replaced by MEDIUM.
+         *
+         * @return the quality level
+         */
+        static Quality fromProperty() {
+            String value = System.getProperty("robotrace.quality", "medium");
+            try {
+                return valueOf(value.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException ex) {
+                Logger.getLogger(RobotRace.class.getName()).log(Level.WARNING,
+                        "Unknown quality {0}, using medium", value);
+                return MEDIUM;
+            }
+        }
+    }
 
     /**
      * Class containing static variables representing different materials.
@@ -154,6 +230,41 @@ public class RobotRace extends Base {
         };
     }
 
+    /**
+     * Reads the number of robots from the robotrace.robots system property.
+     * Numbers below 1 are reported and replaced by LANES.
+     *
+     * @return the number of robots
+     */
+    private static int robotCount() {
+        int count = Integer.getInteger("robotrace.robots", LANES);
+        if (count < 1) {
+            Logger.getLogger(RobotRace.class.getName()).log(Level.WARNING,
+                    "Invalid number of robots {0}, using {1}",
+                    new Object[]{count, LANES});
+            return LANES;
+        }
+        return count;
+    }
+
+    /**
+     * Reads the number of vertices along a side of the terrain from the
+     * robotrace.terrain system property. Numbers below 2 are reported and
+     * replaced by 200.
+     *
+     * @return the number of vertices
+     */
+    private static int terrainSize() {
+        int size = Integer.getInteger("robotrace.terrain", 200);
+        if (size < 2) {
+            Logger.getLogger(RobotRace.class.getName()).log(Level.WARNING,
+                    "Invalid terrain size {0}, using {1}",
+                    new Object[]{size, 200});
+            return 200;
+        }
+        return size;
+    }
+
     /**
      * Called upon the start of the application. Primarily used to configure
      * OpenGL.
@@ -185,16 +296,26 @@ public class RobotRace extends Base {
         float[] ambient = {1f, 1f, 1f, 1f};
         gl.glLightfv(GL_LIGHT0, GL_AMBIENT, ambient, 0);
 
-        // Initialize robots array.
-        robots = new Robot[NUMROBOTS];
-        for (int i = 0; i < NUMROBOTS; i++) {
-            robots[i] = new Robot(i + 1);
-        }
+        // Initialize the simulation of the robots, and the robot drawing them.
+        swarm = new RobotSwarm(NUMROBOTS, 0);
+        robot = new Robot(1);
+        points = new double[3 * NUMROBOTS];
+        normals = new double[3 * NUMROBOTS];
 
         // Make a track in the shape of a specified Bezier curve, with the wdith
-        // of the number of robots plus 1. Let the height of the track be
+        // of the number of lanes plus 1. Let the height of the track be
         // between -1 and 1.
-        t = new Track(NUMROBOTS + 1, -1, 1);
+        t = new Track(LANES + 1, -1, 1, QUALITY.tolerance);
+
+        // Cache the curves of the tracks, since they are evaluated many times
+        // per frame.
+        curves = new Curve[]{
+            new CachedCurve(BezierCurve.O, CURVESAMPLES),
+            new CachedCurve(BezierCurve.D, CURVESAMPLES),
+            new CachedCurve(BezierCurve.L, CURVESAMPLES),
+            new CachedCurve(BezierCurve.custom, CURVESAMPLES)};
+        // Build the meshes of all tracks in the background.
+        t.precompute(curves);
 
         // Load a 1D texture for the landscape.
         try {
@@ -204,21 +325,9 @@ public class RobotRace extends Base {
         }
 
         // Randomly generate terrain.
-        Bump[] bumps = new Bump[NUMBUMPS];
-        Random generator = new Random(0);
-        for (int i = 0; i < NUMBUMPS; i++) {
-            // Generate a center coordinate for the bump.
-            double center_x = (generator.nextDouble() * 40) - 20;
-            double center_y = (generator.nextDouble() * 40) - 20;
-            // Generate a (extreme) height for the bump.
-            double height = (generator.nextDouble() * 2) - 1;
-            // Generate a radius for the bump.
-            double radius = generator.nextDouble() * 3;
-            // Define this bump.
-            bumps[i] = new Bump(center_x, center_y, height, radius);
-        }
+        Bump[] bumps = Bump.random(NUMBUMPS, 0);
         // Define the terrain as a surface with these bumps.
-        terrain = new Terrain(bumps);
+        terrain = new Terrain(TERRAINSIZE, bumps);
         terrain.precalculate(); // precalculate all surfaces
     }
 
@@ -227,6 +336,11 @@ public class RobotRace extends Base {
      */
     @Override
     public void setView() {
+        // Select the track and advance the race first, such that the robots
+        // are placed on the track that is drawn and the cameras follow them.
+        selectCurve();
+        simulate();
+
         // Calculate directional vector of the camera (view direction).
         Vector dir = new Vector(cos(gs.phi) * cos(gs.theta),
                 sin(gs.phi) * cos(gs.theta),
@@ -336,6 +450,9 @@ public class RobotRace extends Base {
         // Update the old values of phi and theta.
         phi_old = gs.phi;
         theta_old = gs.theta;
+
+        // Store the view frustum of the camera for culling.
+        updateFrustum();
     }
 
     /**
@@ -352,9 +469,23 @@ public class RobotRace extends Base {
         // Clear depth buffer.
         gl.glClear(GL_DEPTH_BUFFER_BIT);
 
+        // Reset the statistics of the previous frame.
+        terrain.triangles = 0;
+        terrain.submitted = 0;
+        t.drawn = 0;
+
         // Draw the objects in the scene.
         drawObjects();
 
+        // Report the number of track chunks drawn when it changes.
+        if (t.drawn != drawnChunks || gs.camMode != drawnCamMode) {
+            drawnChunks = t.drawn;
+            drawnCamMode = gs.camMode;
+            Logger.getLogger(RobotRace.class.getName()).log(Level.FINE,
+                    "Camera mode {0}: {1} of {2} track chunks drawn",
+                    new Object[]{drawnCamMode, drawnChunks, t.chunks});
+        }
+
         // Display a clock in the top left corner of the screen.
         displayClock(200);
 
@@ -362,42 +493,82 @@ public class RobotRace extends Base {
         if (gs.camMode != 1) {
             displayPictureInPicture(200);
         }
+
+        // Report the frame rate every few seconds when drawing many robots.
+        if (NUMROBOTS > INSTANCED) {
+            frames++;
+            if (gs.tAnim - tReported >= 5) {
+                Logger.getLogger(RobotRace.class.getName()).log(Level.INFO,
+                        "{0} robots at {1} frames per second", new Object[]{
+                            NUMROBOTS, frames / (gs.tAnim - tReported)});
+                frames = 0;
+                tReported = gs.tAnim;
+            }
+        }
     }
 
     /**
-     * Draws the objects of the scene.
+     * Sets the curve of the track to the one the user selected.
      */
-    private void drawObjects() {
-        // Set color to black.
-        gl.glColor3f(0f, 0f, 0f);
-
-        // Draw Axis Frame.
-        drawAxisFrame();
-
-        // Reset to default texture.
-        track.disable(gl);
-
-        // Use the curve the user selected.
+    private void selectCurve() {
         switch (gs.trackNr) {
             case 0:
                 //letter O
-                t.curve = BezierCurve.O;
+                t.curve = curves[0];
                 break;
             case 1:
                 //letter D
-                t.curve = BezierCurve.D;
+                t.curve = curves[1];
                 break;
             case 2:
                 //letter L
-                t.curve = BezierCurve.L;
+                t.curve = curves[2];
                 break;
             case 3:
                 //custom track
-                t.curve = BezierCurve.custom;
+                t.curve = curves[3];
                 break;
             default:
                 t.curve = null;
         }
+    }
+
+    /**
+     * Advances the race to gs.tAnim in steps of TICK seconds. Time that is
+     * left over is kept for the next frame, so the race runs at the same
+     * speed regardless of the frame rate and of how often it is drawn. The
+     * robots are placed at the time that is left over, interpolated between
+     * the last two steps.
+     */
+    private void simulate() {
+        float dt = gs.tAnim - tAnim_old; // change in time since last update
+        tAnim_old = gs.tAnim;
+        if (dt < 0) {
+            dt = 0; // the animation time was reset
+        }
+        // Don't catch up on more than MAXTICKS steps at once, for example
+        // after the application was paused.
+        accumulator = min(accumulator + dt, MAXTICKS * TICK);
+        while (accumulator >= TICK) {
+            swarm.step(TICK);
+            accumulator -= TICK;
+        }
+        float alpha = accumulator / TICK; // fraction of the next step
+        swarm.place(t.curve, alpha);
+    }
+
+    /**
+     * Draws the objects of the scene.
+     */
+    private void drawObjects() {
+        // Set color to black.
+        gl.glColor3f(0f, 0f, 0f);
+
+        // Draw Axis Frame.
+        drawAxisFrame();
+
+        // Reset to default texture.
+        track.disable(gl);
 
         // Set the material of the track to white.
         // The track has textures, and we do not want to interfere with that.
@@ -412,7 +583,6 @@ public class RobotRace extends Base {
         gl.glTranslatef(-3, 0, 0);
         for (float[] material : robot_materials) { // Make a robot for each material.
             Robot robot = new Robot(); // Construct the robot.
-            robot.speed = 0; // Make the robots stand still.
             setMaterial(material); // Set the material
             robot.draw(); // Draw the robot.
             //Translate two units to the right to make space for the next robot.
@@ -420,39 +590,53 @@ public class RobotRace extends Base {
         }
         gl.glPopMatrix();
 
-        // Draw robots participating in the race.
-        for (int i = 0; i < robots.length; i++) {
-            Robot robot = robots[i];
-            gl.glPushMatrix();
+        // Draw robots participating in the race. Evaluate the curve at the
+        // positions of all robots at once.
+        t.curve.evaluate(swarm.positions(), points, null, normals);
+        // Draw large numbers of robots instanced, skipping the ones outside of
+        // the view.
+        boolean instanced = NUMROBOTS > INSTANCED && !gs.showStick
+                && instancer.isAvailable(gl);
+        for (int i = 0; i < NUMROBOTS; i++) {
             // Calculate the position of the robot. First get the point where the
             // robot is currently and add to it the normal of the curve normalized,
             // so that the robots will follow the shape of the track, and scaled
             // such that the robots will keep the same line on the track.   
-            Vector pos = t.curve.getPoint(robot.position).add(
-                    t.curve.getNormalVector(robot.position).normalized().scale(i + 1));
+            int k = 3 * i;
+            double scale = (i % LANES + 1) / sqrt(normals[k] * normals[k]
+                    + normals[k + 1] * normals[k + 1] + normals[k + 2] * normals[k + 2]);
+            if (instanced) {
+                // Combine the rotation and position into the model matrix.
+                t.curve.getOrientation(swarm.position(i), orientation);
+                for (int c = 0; c < 3; c++) {
+                    orientation[12 + c] = points[k + c] + scale * normals[k + c];
+                    robotLow[c] = orientation[12 + c] - ROBOTSIZE;
+                    robotHigh[c] = orientation[12 + c] + ROBOTSIZE;
+                }
+                if (frustum.intersects(robotLow, robotHigh)) {
+                    instancer.add(orientation, swarm.angle(i), 0);
+                }
+                continue;
+            }
+            gl.glPushMatrix();
             // Translate the robot to the position.
-            gl.glTranslated(pos.x(), pos.y(), pos.z());
-
-            // Calculate the angle for which the robots need to be rotated such
-            // that they will always seem to walk straight.
-
-            // First get the track tangent at the robot position.
-            Vector tangent = t.curve.getTangent(robot.position);
-            // Calculate the dot product between the tangent and the Y axis.
-            double dot = tangent.dot(Vector.Y);
-            // Get the cos angle between the tangent and the Y axis.
-            double cosangle = dot / (tangent.length() * Vector.Y.length());
-            // Because the acos method always returns a value between 0 and PI,
-            // the sign of the angle needs to be flipped if the tangent vector
-            // of the curve points in the negative Y direction.
-            // Variable ypos is true if this is the case.
-            boolean ypos = (t.curve.getTangent(robot.position).x() >= 0);
-            double angle = ypos ? -acos(cosangle) : acos(cosangle);
-            gl.glRotated(toDegrees(angle), 0, 0, 1);
+            gl.glTranslated(points[k] + scale * normals[k],
+                    points[k + 1] + scale * normals[k + 1],
+                    points[k + 2] + scale * normals[k + 2]);
+
+            // Rotate the robot such that it walks along the track and stands
+            // upright on it, also where the track goes up or down.
+            t.curve.getOrientation(swarm.position(i), orientation);
+            gl.glMultMatrixd(orientation, 0);
             setMaterial(Material.SILVER); // Set the material to silver.
+            robot.number = i + 1;
+            robot.legs.angle = swarm.angle(i);
             robot.draw(); // Draw the robot
             gl.glPopMatrix();
         }
+        if (instanced) {
+            instancer.draw(gl, meshes, robot, projection, modelview, light);
+        }
 
         // Draw rotationally symmetric shape (for demonstration purposes).
         double[] x = {2, 1, 2, 0};
@@ -464,6 +648,67 @@ public class RobotRace extends Base {
         terrain.draw();
     }
 
+    /**
+     * Draws a solid cylinder along the Z axis with its base in the origin,
+     * like glutSolidCylinder, from the mesh library.
+     *
+     * @param radius radius of the cylinder
+     * @param height height of the cylinder
+     * @param slices number of subdivisions around the Z axis
+     * @param stacks number of subdivisions along the Z axis
+     */
+    private void solidCylinder(double radius, double height, int slices,
+            int stacks) {
+        gl.glPushMatrix();
+        gl.glScaled(radius, radius, height);
+        meshes.cylinder(gl, slices, stacks);
+        gl.glPopMatrix();
+    }
+
+    /**
+     * Draws a solid cone along the Z axis with its base in the origin, like
+     * glutSolidCone, from the mesh library.
+     *
+     * @param base radius of the base of the cone
+     * @param height height of the cone
+     * @param slices number of subdivisions around the Z axis
+     * @param stacks number of subdivisions along the Z axis
+     */
+    private void solidCone(double base, double height, int slices, int stacks) {
+        gl.glPushMatrix();
+        gl.glScaled(base, base, height);
+        meshes.cone(gl, slices, stacks);
+        gl.glPopMatrix();
+    }
+
+    /**
+     * Draws a solid sphere around the origin, like glutSolidSphere, from the
+     * mesh library.
+     *
+     * @param radius radius of the sphere
+     * @param slices number of subdivisions around the Z axis
+     * @param stacks number of subdivisions along the Z axis
+     */
+    private void solidSphere(double radius, int slices, int stacks) {
+        gl.glPushMatrix();
+        gl.glScaled(radius, radius, radius);
+        meshes.sphere(gl, slices, stacks);
+        gl.glPopMatrix();
+    }
+
+    /**
+     * Draws a solid cube around the origin, like glutSolidCube, from the
+     * mesh library.
+     *
+     * @param size length of the sides of the cube
+     */
+    private void solidCube(double size) {
+        gl.glPushMatrix();
+        gl.glScaled(size, size, size);
+        meshes.cube(gl);
+        gl.glPopMatrix();
+    }
+
     /**
      * Draws an arrow in the Z direction.
      *
@@ -482,14 +727,14 @@ public class RobotRace extends Base {
         gl.glPushMatrix();
         gl.glTranslatef(0, 0, 0.5f);
         gl.glScalef(line_radius, line_radius, 0.9f);
-        glut.glutSolidCube(1);
+        solidCube(1);
         gl.glPopMatrix();
 
         gl.glPushMatrix();
         // Translate to the end of the line
         gl.glTranslatef(0f, 0f, 0.9f);
         // Draw an arrowhead with length 0.1 and radius arrowhead_radius
-        glut.glutSolidCone(arrowhead_radius, 0.1f, 15, 2);
+        solidCone(arrowhead_radius, 0.1f, 15, 2);
         gl.glPopMatrix();
 
         gl.glPopMatrix();
@@ -507,7 +752,7 @@ public class RobotRace extends Base {
             // Draw yellow sphere in origin.
             gl.glColor3f(1.0f, 1.0f, 0); // set color to yellow
             setMaterial(Material.YELLOW_PLASTIC);
-            glut.glutSolidSphere(0.10f, 20, 20); // draw sphere
+            solidSphere(0.10f, 20, 20); // draw sphere
 
             // Draw arrow for X axis.
             gl.glPushMatrix();
@@ -853,18 +1098,22 @@ public class RobotRace extends Base {
     private void setHelicopterCamMode() {
         float total = 0;
         // Calculate the total position of the robots. 
-        for (Robot robot : robots) {
-            total += robot.position;
+        for (int i = 0; i < swarm.size; i++) {
+            total += swarm.position(i);
         }
-        float avg = total / NUMROBOTS; // Compute the average position.
+        float avg = total / swarm.size; // Compute the average position.
+        // Evaluate the point, tangent and normal at once.
+        double[] point = new double[3], tng = new double[3], normal = new double[3];
+        t.curve.evaluate(new double[]{avg}, point, tng, normal);
         // Set the center point to be at the average position of the robots on
         // the track plus the normal vector with a magnitude of half of the
-        // number of robots. This places the center in the middle of the robots.
-        Vector center = t.curve.getPoint(avg).add(t.curve.getNormalVector(avg).normalized().scale(NUMROBOTS / 2));
+        // number of lanes. This places the center in the middle of the robots.
+        Vector center = new Vector(point[0], point[1], point[2]).add(
+                new Vector(normal[0], normal[1], normal[2]).normalized().scale(LANES / 2));
         // Set the camers position to be 10 units above the center point.
         Vector camPos = center.add(new Vector(0, 0, 10));
         // Get the track tangent at the current point. 
-        Vector tangent = t.curve.getTangent(avg);
+        Vector tangent = new Vector(tng[0], tng[1], tng[2]);
         // Set the camera. The up vector is set to be the tangent vector to make
         // it turn with the track.
         glu.gluLookAt(camPos.x(), camPos.y(), camPos.z(), //eye point
@@ -879,14 +1128,18 @@ public class RobotRace extends Base {
     private void setMotorcycleCamMode() {
         float max = 0;
         // Get the position of the robot that is in front.
-        for (Robot robot : robots) {
-            max = max(max, robot.position);
+        for (int i = 0; i < swarm.size; i++) {
+            max = max(max, (float) swarm.position(i));
         }
+        // Evaluate the point and normal at once.
+        double[] p = new double[3], normal = new double[3];
+        t.curve.evaluate(new double[]{max}, p, null, normal);
+        Vector point = new Vector(p[0], p[1], p[2]);
         // Set the center point to be one unit higher than the robot's position.
-        Vector center = t.curve.getPoint(max).add(new Vector(0, 0, 1));
+        Vector center = point.add(new Vector(0, 0, 1));
         // Get the camer aposition such that is next to the front robot at a height
         // of one unit.
-        Vector camPos = t.curve.getPoint(max).add(t.curve.getNormalVector(max).normalized().scale(NUMROBOTS + 1)).add(new Vector(0, 0, 1));
+        Vector camPos = point.add(new Vector(normal[0], normal[1], normal[2]).normalized().scale(LANES + 1)).add(new Vector(0, 0, 1));
         glu.gluLookAt(camPos.x(), camPos.y(), camPos.z(), //eye point
                 center.x(), center.y(), center.z(), //center point
                 0, 0, 1);//up vector
@@ -898,27 +1151,32 @@ public class RobotRace extends Base {
      * because he sees the most other robots.
      */
     private void setFirstPersonCamMode() {
-        Robot robot = robots[0];
         // Get the position of the first created robot.
-        Vector pos = t.curve.getPoint(robot.position);
+        Vector pos = t.curve.getPoint(swarm.position(0));
+        // Get the orientation of the robot: column 1 is the direction it walks
+        // in and column 2 is the direction of its head.
+        double[] orientation = new double[16];
+        t.curve.getOrientation(swarm.position(0), orientation);
+        Vector forward = new Vector(orientation[4], orientation[5], orientation[6]);
+        Vector up = new Vector(orientation[8], orientation[9], orientation[10]);
         Vector camPos;
         Vector center;
         if (gs.persp) {
             // For the perspective projection set the camera to be the position
             // of the robot plus the height of the robot and
             // add the tangent of the robot with the track normalized.
-            camPos = pos.add(new Vector(0, 0, robot.hatPart.getHeight())).add(t.curve.getTangent(robot.position).normalized());
+            camPos = pos.add(up.scale(robot.hatPart.getHeight())).add(forward);
             // Set the camera to look from its position towards the tangent of the
             // robot with the track.
-            center = camPos.add(t.curve.getTangent(robot.position).normalized().scale(5));
+            center = camPos.add(forward.scale(5));
         } else {
             // For the isometric projection set the camerato be the position of the 
             // robot plus the height of the robot and
             // add the tangent of the robot with the track, normalized and
             // scaled two untis.
-            camPos = pos.add(new Vector(0, 0, robot.hatPart.getHeight())).add(t.curve.getTangent(robot.position).normalized().scale(2));
+            camPos = pos.add(up.scale(robot.hatPart.getHeight())).add(forward.scale(2));
             // Set the camera to look from its position along the tangent vector.
-            center = pos.add(t.curve.getTangent(robot.position).normalized().scale(7));
+            center = pos.add(forward.scale(7));
             /*
              * NB: using first person mode in isometric projection gives some
              * strange effects. First of all, the track seems to up and down.
@@ -934,7 +1192,17 @@ public class RobotRace extends Base {
         }
         glu.gluLookAt(camPos.x(), camPos.y(), camPos.z(), // eye point 
                 center.x(), center.y(), center.z(), // center point
-                0, 0, 1); // up vector
+                up.x(), up.y(), up.z()); // up vector
+    }
+
+    /**
+     * Updates the view frustum, and the projection and modelview fields, to
+     * the current matrices. This should be called after setting the camera.
+     */
+    private void updateFrustum() {
+        gl.glGetFloatv(GL_PROJECTION_MATRIX, projection, 0);
+        gl.glGetFloatv(GL_MODELVIEW_MATRIX, modelview, 0);
+        frustum.update(projection, modelview);
     }
 
     /**
@@ -957,9 +1225,6 @@ public class RobotRace extends Base {
      */
     class Robot {
 
-        boolean legDirection = false; // specifies if the leg is moving forward
-        float speed = 10f; // specifies speed at which legs.angle is increased
-        final static private float MAXANGLE = 20; // upper bound for legs.angle
         HatPart hatPart; // object representing the hat of the robot
         HeadPart headPart; // object representing the head of the robot
         TorsoPart torsoPart; // object representing the torso of the robot
@@ -967,8 +1232,6 @@ public class RobotRace extends Base {
         LegsPart legs; // object representing the legs of the robot
         Set<RobotPart> parts; // set containing all components which are drawn
         Color color; // color of this robot
-        float position = 0; // current position on the track
-        float tAnim_old = 0; // value for tAnim when last updating position
         int number; // number of the robot
 
         /**
@@ -1054,11 +1317,11 @@ public class RobotRace extends Base {
         }
 
         /**
-         * Draws the robot.
+         * Draws the robot in its current state. The robot is moved by the
+         * simulation instead, so drawing it more than once per frame does not
+         * change its state.
          */
         public void draw() {
-            this.handleMovement();
-
             gl.glPushMatrix();
             gl.glPushAttrib(GL_CURRENT_BIT);
 
@@ -1071,43 +1334,6 @@ public class RobotRace extends Base {
             gl.glPopMatrix();
         }
 
-        /**
-         * Moves the robot and turns the arms and legs by updating
-         * {@code legDirection}, {@code legs.angle} and {@code position} based
-         * on {@code legDirection}, {@code speed}, {@code MAXANGLE} and
-         * {@code gs.tAnim}.
-         */
-        public void handleMovement() {
-            if (abs(legs.angle) >= MAXANGLE) {
-                // The maximum angle has been reached.
-                // Reverse the direction.
-                legDirection = !legDirection;
-            }
-
-            // When moving the leg forwards, increase the angle.
-            // When moving the leg backwards, decrease the angle.
-            legs.angle += (legDirection ? 1 : -1) * speed;
-
-            // Update current position on the track.
-            /*
-             * The position should be increased by a value that is: - positive;
-             * robots should not move backwards - random; the race should be
-             * exciting - dependent on time; gs.tAnim decides how fast time
-             * progresses. Rendering using higher FPS should not influence the
-             * speeds of the robots. To accomplish this, we compute the time
-             * that has passed since the last update of the position. We then
-             * increase the position by the product of this difference, a random
-             * variable and some scalar to prevent the robots from moving to
-             * fast.
-             */
-            float tAnim = gs.tAnim; // the current time
-            float dt = tAnim - tAnim_old; // change in time since last update
-            float random =
-                    new java.util.Random().nextFloat(); // random value in [0,1]
-            position += dt * random / 8; // increase the position
-            tAnim_old = tAnim; // store the current time for future reference
-        }
-
         /**
          * Represents the legs of a robot. A leg includes a hip, an upper part,
          * a knee and a lower part.
@@ -1198,7 +1424,7 @@ public class RobotRace extends Base {
                     gl.glScalef(parent.thickness, parent.thickness, parent.width);
                     // Draw a cylinder with the radius of half of the leg's
                     // thickness, and as long as the leg's width. 
-                    glut.glutSolidCylinder(0.5, 1, 20, 10);
+                    solidCylinder(0.5, 1, 20, 10);
                     gl.glPopMatrix();
                 }
 
@@ -1235,7 +1461,7 @@ public class RobotRace extends Base {
                     // one half of the leg.
                     gl.glScalef(parent.width, parent.thickness,
                             0.5f * parent.length);
-                    glut.glutSolidCube(1);
+                    solidCube(1);
                     gl.glPopMatrix();
                 }
             }
@@ -1263,7 +1489,7 @@ public class RobotRace extends Base {
                     // Draw a cylinder to represent the knee with a radius of
                     // half of the leg's thickness and of the length of
                     // the leg's width.
-                    glut.glutSolidCylinder(0.5, 1, 20, 10);
+                    solidCylinder(0.5, 1, 20, 10);
                     gl.glPopMatrix();
                 }
             }
@@ -1295,7 +1521,7 @@ public class RobotRace extends Base {
                     // the leg.
                     gl.glScalef(parent.width, parent.thickness,
                             0.5f * parent.length);
-                    glut.glutSolidCube(1);
+                    solidCube(1);
                     gl.glPopMatrix();
                 }
             }
@@ -1418,7 +1644,7 @@ public class RobotRace extends Base {
                     // Draw a cylinder to represent the shoulder with a radius
                     // of half of the arm's thickness and with length of the
                     // arm's width.
-                    glut.glutSolidCylinder(0.5, 1, 20, 10);
+                    solidCylinder(0.5, 1, 20, 10);
                     gl.glPopMatrix();
                 }
             }
@@ -1473,7 +1699,7 @@ public class RobotRace extends Base {
                             0, -0.5f * parent.length);
                     // Scale a cube according to the arm's dimensions.
                     gl.glScalef(parent.width, parent.thickness, parent.length);
-                    glut.glutSolidCube(1f);
+                    solidCube(1f);
                     gl.glPopMatrix();
                 }
             }
@@ -1645,7 +1871,7 @@ public class RobotRace extends Base {
                     gl.glTranslated(0, 0, headPart.getHeight() - 0.1f);
                     // Draw a cone with the specified height and a base of
                     // height/2.
-                    glut.glutSolidCone(0.5f * height, height, 10, 10);
+                    solidCone(0.5f * height, height, 10, 10);
 
                     gl.glPopMatrix();
                 }
@@ -1681,8 +1907,252 @@ public class RobotRace extends Base {
         public float getHeight();
     }
 
+    /**
+     * Simulates the movement of a number of robots. The state of the robots
+     * is kept in arrays instead of in Robot objects, such that a step only
+     * walks through memory in order and allocates nothing.
+     *
+     * The robots are updated in chunks of CHUNK robots, which are divided
+     * among the threads of a fork-join pool. Every chunk draws from its own
+     * random number stream, such that the race does not depend on the number
+     * of threads.
+     *
+     * Running this class reports the number of steps per second for each
+     * parallelism from 1 up to the number of processors, see main.
+     */
+    public static class RobotSwarm {
+
+        final static public float MAXANGLE = 20; // upper bound for the angle
+        final static public float MAXSPEED = 8; // maximum speed in units per second
+        final static public float SPEED = 10; // change of angle per step
+        final static private int CHUNK = 4096; // robots per chunk
+        final public int size; // number of robots
+        // Angle of the legs and arms, and distance travelled along the track,
+        // after the last and the previous step.
+        final private float[] angles, angles_old;
+        final private double[] distances, distances_old;
+        final private float[] speeds; // change of the angle per step
+        final private boolean[] forward; // whether the legs move forward
+        final private SplittableRandom[] randoms; // random numbers per chunk
+        // Angle and parameter on the track of each robot as drawn, between
+        // the last two steps, see place.
+        final private float[] drawnAngles;
+        final private double[] positions;
+
+        /**
+         * Constructs a swarm of robots at the start of the track, with their
+         * legs straight.
+         *
+         * @param size number of robots
+         * @param seed seed of the random numbers
+         */
+        public RobotSwarm(int size, long seed) {
+            this.size = size;
+            angles = new float[size];
+            angles_old = new float[size];
+            distances = new double[size];
+            distances_old = new double[size];
+            speeds = new float[size];
+            Arrays.fill(speeds, SPEED);
+            forward = new boolean[size];
+            drawnAngles = new float[size];
+            positions = new double[size];
+            SplittableRandom random = new SplittableRandom(seed);
+            randoms = new SplittableRandom[(size + CHUNK - 1) / CHUNK];
+            for (int c = 0; c < randoms.length; c++) {
+                randoms[c] = random.split();
+            }
+        }
+
+        /**
+         * Moves all robots and turns their arms and legs over one step, using
+         * the shared pool of RowTask.
+         *
+         * @param dt the length of the step in seconds
+         */
+        public void step(float dt) {
+            step(dt, RowTask.POOL);
+        }
+
+        /**
+         * Moves all robots and turns their arms and legs over one step. The
+         * previous state is kept to interpolate between the steps.
+         *
+         * @param dt the length of the step in seconds
+         * @param pool the pool to divide the chunks among
+         */
+        public void step(final float dt, ForkJoinPool pool) {
+            forChunks(pool, new RowAction() {
+                @Override
+                public void rows(int from, int to) {
+                    for (int c = from; c < to; c++) {
+                        step(c, dt);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Moves the robots of a chunk over one step.
+         */
+        private void step(int chunk, float dt) {
+            SplittableRandom random = randoms[chunk];
+            int end = min(size, (chunk + 1) * CHUNK);
+            for (int i = chunk * CHUNK; i < end; i++) {
+                angles_old[i] = angles[i];
+                distances_old[i] = distances[i];
+                if (abs(angles[i]) >= MAXANGLE) {
+                    // The maximum angle has been reached.
+                    // Reverse the direction.
+                    forward[i] = !forward[i];
+                }
+                angles[i] += forward[i] ? speeds[i] : -speeds[i];
+                // The distance increases by a random part of the distance at
+                // maximum speed, such that the race is exciting.
+                distances[i] += dt * random.nextDouble() * MAXSPEED;
+            }
+        }
+
+        /**
+         * Computes the state of all robots as drawn, in between the last two
+         * steps, using the shared pool of RowTask.
+         *
+         * @param curve the curve of the track, or null if there is none
+         * @param alpha fraction of a step since the last one
+         */
+        public void place(Curve curve, float alpha) {
+            place(curve, alpha, RowTask.POOL);
+        }
+
+        /**
+         * Computes the state of all robots as drawn, in between the last two
+         * steps. This keeps the movement smooth when drawing more often than
+         * simulating.
+         *
+         * The distance is converted into a parameter using the arc length of
+         * the curve, such that the speed does not depend on the part of the
+         * track the robot is on. The integer part of the parameter counts the
+         * laps.
+         *
+         * @param curve the curve of the track, or null if there is none
+         * @param alpha fraction of a step since the last one
+         * @param pool the pool to divide the chunks among
+         */
+        public void place(final Curve curve, final float alpha,
+                ForkJoinPool pool) {
+            // Computing the length here also builds the arc length table of
+            // the curve, if needed, before it is used by multiple threads.
+            final double length = (curve != null) ? curve.length() : 0;
+            forChunks(pool, new RowAction() {
+                @Override
+                public void rows(int from, int to) {
+                    int end = min(size, to * CHUNK);
+                    for (int i = from * CHUNK; i < end; i++) {
+                        drawnAngles[i] = angles_old[i]
+                                + alpha * (angles[i] - angles_old[i]);
+                        if (curve != null) {
+                            double d = distances_old[i]
+                                    + alpha * (distances[i] - distances_old[i]);
+                            positions[i] = floor(d / length) + curve.parameterAt(d);
+                        }
+                    }
+                }
+            });
+        }
+
+        /**
+         * Performs an action on the chunks [from, to), divided among the
+         * threads of the pool if there is more than one chunk.
+         */
+        private void forChunks(ForkJoinPool pool, RowAction action) {
+            if (randoms.length > 1) {
+                pool.invoke(new RowTask(action, 0, randoms.length));
+            } else {
+                action.rows(0, randoms.length);
+            }
+        }
+
+        /**
+         * Returns the angle of the legs and arms of a robot as drawn.
+         *
+         * @param i the robot
+         * @return the angle
+         */
+        public float angle(int i) {
+            return drawnAngles[i];
+        }
+
+        /**
+         * Returns the parameter on the track of a robot as drawn.
+         *
+         * @param i the robot
+         * @return the parameter, whose integer part counts the laps
+         */
+        public double position(int i) {
+            return positions[i];
+        }
+
+        /**
+         * Returns the parameters on the track of all robots as drawn. The
+         * returned array must not be modified.
+         *
+         * @return the parameter of every robot
+         */
+        public double[] positions() {
+            return positions;
+        }
+
+        /**
+         * Runs the simulation for each parallelism from 1 up to the number of
+         * processors and prints the number of steps per second, and the
+         * number of times per second all robots can be placed.
+         *
+         * @param args the number of robots (default 1000000) and the number
+         * of measured steps (default 200)
+         */
+        public static void main(String[] args) {
+            int robots = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+            int ticks = (args.length > 1) ? Integer.parseInt(args[1]) : 200;
+            int processors = Runtime.getRuntime().availableProcessors();
+            Curve curve = new CachedCurve(BezierCurve.O, CURVESAMPLES);
+            System.out.printf("%d robots, %d steps, %d processors%n",
+                    robots, ticks, processors);
+            for (int p = 1; p <= processors; p++) {
+                ForkJoinPool pool = new ForkJoinPool(p);
+                RobotSwarm swarm = new RobotSwarm(robots, 0);
+                for (int k = 0; k < ticks / 4; k++) { // warm up
+                    swarm.step(1 / 30f, pool);
+                    swarm.place(curve, 0.5f, pool);
+                }
+                long start = System.nanoTime();
+                for (int k = 0; k < ticks; k++) {
+                    swarm.step(1 / 30f, pool);
+                }
+                long stepped = System.nanoTime();
+                for (int k = 0; k < ticks; k++) {
+                    swarm.place(curve, 0.5f, pool);
+                }
+                long placed = System.nanoTime();
+                // The sum of all positions shows that the result does not
+                // depend on the parallelism.
+                double checksum = 0;
+                for (double position : swarm.positions) {
+                    checksum += position;
+                }
+                System.out.printf("parallelism %d: %.1f steps/s, %.1f places/s,"
+                        + " checksum %.9f%n", p, ticks * 1e9 / (stepped - start),
+                        ticks * 1e9 / (placed - stepped), checksum);
+                pool.shutdown();
+            }
+        }
+    }
+
     /**
      * Represents the track on which the robots are running.
+     *
+     * The track of every curve is tessellated once into a TrackMesh, which is
+     * kept in a vertex buffer object until it is evicted from the cache of
+     * meshes. The cache is bounded and evicts the least recently drawn mesh.
      */
     public class Track {
 
@@ -1690,7 +2160,26 @@ public class RobotRace extends Base {
         private float width; // width of the track
         private float minHeight; // height at which the track starts
         private float maxHeight; // height at which the track ends
-        final static private int N = 100; // number of polygons used to display
+        private double tolerance; // maximum distance between curve and polygons
+        final static private int MAXMESHES = 8; // maximum number of cached meshes
+        // Meshes of the tracks, ordered from least to most recently drawn.
+        final private Map<Curve, TrackMesh> meshes
+                = new LinkedHashMap<Curve, TrackMesh>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(
+                            Map.Entry<Curve, TrackMesh> eldest) {
+                        if (size() > MAXMESHES) {
+                            released.add(eldest.getValue());
+                            return true;
+                        }
+                        return false;
+                    }
+                };
+        // Evicted meshes whose buffers are deleted on the next draw.
+        final private List<TrackMesh> released = new ArrayList<TrackMesh>();
+        private boolean[] visible = new boolean[0]; // whether chunks are visible
+        int drawn = 0; // number of chunks drawn since last reset
+        int chunks = 0; // number of chunks of the last drawn track
 
         /**
          * Constructs a truck with the given parameters.
@@ -1699,661 +2188,4745 @@ public class RobotRace extends Base {
          * @param width The width of the track.
          * @param minHeight height at which the track starts
          * @param maxHeight height at which the track ends
+         * @param tolerance maximum distance between the curve and the polygons
+         * used to display it
          */
-        public Track(float width, float minHeight, float maxHeight) {
+        public Track(float width, float minHeight, float maxHeight,
+                double tolerance) {
             this.width = width;
             this.minHeight = minHeight;
             this.maxHeight = maxHeight;
+            this.tolerance = tolerance;
         }
 
         /**
-         * Draws the track.
+         * Changes the maximum distance between the curve and the polygons used
+         * to display it. All meshes are tessellated again when they are drawn
+         * next.
+         *
+         * @param tolerance the new tolerance
+         */
+        public void setTolerance(double tolerance) {
+            synchronized (meshes) {
+                this.tolerance = tolerance;
+                released.addAll(meshes.values());
+                meshes.clear();
+            }
+        }
+
+        /**
+         * Builds the meshes of the given curves on a background thread, such
+         * that switching to one of them later does not cause a hitch. Their
+         * vertex buffers are still created when they are first drawn.
+         *
+         * @param curves the curves to build meshes for
+         */
+        public void precompute(final Curve... curves) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (Curve curve : curves) {
+                        double tolerance;
+                        synchronized (meshes) {
+                            if (meshes.containsKey(curve)) {
+                                continue; // already built on the GL thread
+                            }
+                            tolerance = Track.this.tolerance;
+                        }
+                        TrackMesh mesh = new TrackMesh(curve, tolerance, width,
+                                minHeight);
+                        synchronized (meshes) {
+                            if (tolerance == Track.this.tolerance
+                                    && !meshes.containsKey(curve)) {
+                                meshes.put(curve, mesh);
+                            }
+                        }
+                    }
+                }
+            }, "Track meshes");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * Returns the mesh of the given curve, building it if it is not in
+         * the cache.
+         */
+        private TrackMesh mesh(Curve curve) {
+            synchronized (meshes) {
+                TrackMesh mesh = meshes.get(curve);
+                if (mesh == null) {
+                    mesh = new TrackMesh(curve, tolerance, width, minHeight);
+                    meshes.put(curve, mesh);
+                }
+                return mesh;
+            }
+        }
+
+        /**
+         * Draws the chunks of the track that are inside of the view frustum.
          */
         public void draw() {
-            List<Vector> points = new ArrayList<Vector>(); // points defining inside of the track
-            List<Vector> offset_points = new ArrayList<Vector>(); // points defining the outside of the track
-            List<Vector> normals = new ArrayList<Vector>(); // vectors pointing pointing outwards
-
-            // Compute all points and normals.
-            for (int i = 0; i <= N; i++) {
-                float t = (float) i / N;
-                Vector point = curve.getPoint(t);
-                points.add(point);
-
-                Vector normal = curve.getNormalVector(t);
-                normals.add(normal);
-                Vector off = point.add(normal.normalized().scale(width));
-                offset_points.add(off);
-            }
-
-            gl.glBegin(GL_LINE_STRIP);
-            // Draw a line on the inside of the track.
-            for (int i = 0; i <= N; i++) {
-                Vector point = points.get(i);
-                gl.glVertex3d(point.x(), point.y(), point.z());
-            }
-            // Draw a line on the outside of the track (and connect the two to
-            // show a start/finish line).
-            for (int i = 0; i <= N; i++) {
-                Vector point = offset_points.get(i);
-                gl.glVertex3d(point.x(), point.y(), point.z());
+            TrackMesh mesh = mesh(curve);
+            synchronized (meshes) {
+                for (TrackMesh old : released) {
+                    old.release(gl);
+                }
+                released.clear();
+            }
+            if (mesh.buffer == 0) {
+                mesh.upload(gl);
+            }
+
+            // Determine which chunks are visible.
+            int n = mesh.lows.length; // the number of chunks
+            if (visible.length != n) {
+                visible = new boolean[n];
+            }
+            for (int c = 0; c < n; c++) {
+                visible[c] = frustum.intersects(mesh.lows[c], mesh.highs[c]);
+                if (visible[c]) {
+                    drawn++;
+                }
+            }
+            chunks = n;
+
+            // Take the vertices from the vertex buffer.
+            gl.glBindBuffer(GL_ARRAY_BUFFER, mesh.buffer);
+            gl.glEnableClientState(GL_VERTEX_ARRAY);
+            gl.glEnableClientState(GL_NORMAL_ARRAY);
+            gl.glEnableClientState(GL_TEXTURE_COORD_ARRAY);
+            int stride = TrackMesh.STRIDE * Buffers.SIZEOF_FLOAT;
+            gl.glVertexPointer(3, GL_FLOAT, stride, 0);
+            gl.glNormalPointer(GL_FLOAT, stride, 3 * Buffers.SIZEOF_FLOAT);
+            gl.glTexCoordPointer(2, GL_FLOAT, stride, 6 * Buffers.SIZEOF_FLOAT);
+
+            // Draw a line on the inside and on the outside of the track.
+            int[] first = mesh.chunks;
+            for (int c = 0; c < n; c++) {
+                if (visible[c]) {
+                    int size = first[c + 1] - first[c] + 1;
+                    gl.glDrawArrays(GL_LINE_STRIP, mesh.inside + first[c], size);
+                    gl.glDrawArrays(GL_LINE_STRIP, mesh.outside + first[c], size);
+                }
+            }
+            // Connect the two to show a start/finish line.
+            if (visible[0]) {
+                gl.glDrawArrays(GL_LINES, mesh.finish, 2);
             }
-            gl.glEnd();
 
-            // Start using track texture.
+            // Draw the top of the track with the track texture.
             track.enable(gl);
             track.bind(gl);
-            gl.glBegin(GL_QUADS);
-            // Draw the top of the track.
-            for (int i = 0; i < N; i++) {
-                Vector point = points.get(i); // point on the inside
-                Vector off = offset_points.get(i); // point on the outside
-                Vector next_off = offset_points.get(i + 1); // next point (outside)
-                Vector next_point = points.get(i + 1); // next point (inside)
-
-                gl.glNormal3d(0, 0, 1); // upwards pointing normal
-                gl.glTexCoord2f(0, 0);
-                gl.glVertex3d(point.x(), point.y(), point.z());
-                gl.glTexCoord2f(1, 0);
-                gl.glVertex3d(off.x(), off.y(), off.z());
-                gl.glTexCoord2f(1, 1);
-                gl.glVertex3d(next_off.x(), next_off.y(), next_off.z());
-                gl.glTexCoord2f(0, 1);
-                gl.glVertex3d(next_point.x(), next_point.y(), next_point.z());
-            }
-            gl.glEnd();
-            // Stop using track texture.
+            drawChunks(mesh, mesh.top, 4);
             track.disable(gl);
 
-            // Start using brick texture.
+            // Draw the sides of the track with the brick texture.
             brick.enable(gl);
             brick.bind(gl);
-            // Draw the sides of the track.
-            gl.glBegin(GL_QUADS);
-            for (int i = 0; i < N; i++) {
-                // Draw inside of the track.
-                Vector normal = normals.get(i).scale(-1); // use reverse normal
-                gl.glNormal3d(normal.x(), normal.y(), normal.z());
-
-                // Draw quad spanning between two points between minHeight, maxHeight.
-                Vector point = points.get(i); // point on inside of the track
-                Vector next_point = points.get(i + 1);
-                gl.glTexCoord2f(0, 0);
-                gl.glVertex3d(point.x(), point.y(), point.z());
-                gl.glTexCoord2f(1, 0);
-                gl.glVertex3d(next_point.x(), next_point.y(), next_point.z());
-                gl.glTexCoord2f(1, 1);
-                gl.glVertex3d(next_point.x(), next_point.y(), minHeight);
-                gl.glTexCoord2f(0, 1);
-                gl.glVertex3d(point.x(), point.y(), minHeight);
-
-                // Draw outside of the track.
-                normal = normals.get(i);
-                gl.glNormal3d(normal.x(), normal.y(), normal.z());
-                // Draw quad spanning between two points between minHeight, maxHeight.
-                point = offset_points.get(i); // point on outside of the track
-                next_point = offset_points.get(i + 1);
-                gl.glTexCoord2f(0, 0);
-                gl.glVertex3d(point.x(), point.y(), point.z());
-                gl.glTexCoord2f(1, 0);
-                gl.glVertex3d(next_point.x(), next_point.y(), next_point.z());
-                gl.glTexCoord2f(1, 1);
-                gl.glVertex3d(next_point.x(), next_point.y(), minHeight);
-                gl.glTexCoord2f(0, 1);
-                gl.glVertex3d(point.x(), point.y(), minHeight);
-            }
-
-            gl.glEnd();
-            // Stop using brick texture.
+            drawChunks(mesh, mesh.sides, 8);
             brick.disable(gl);
+
+            gl.glDisableClientState(GL_TEXTURE_COORD_ARRAY);
+            gl.glDisableClientState(GL_NORMAL_ARRAY);
+            gl.glDisableClientState(GL_VERTEX_ARRAY);
+            gl.glBindBuffer(GL_ARRAY_BUFFER, 0);
+        }
+
+        /**
+         * Draws the quads of the visible chunks, starting at vertex offset
+         * in the vertex buffer with a given number of vertices per polygon.
+         * Consecutive visible chunks are drawn with a single call.
+         */
+        private void drawChunks(TrackMesh mesh, int offset, int vertices) {
+            int[] first = mesh.chunks;
+            for (int c = 0; c < visible.length; c++) {
+                if (!visible[c]) {
+                    continue;
+                }
+                int start = c;
+                while (c + 1 < visible.length && visible[c + 1]) {
+                    c++;
+                }
+                gl.glDrawArrays(GL_QUADS, offset + vertices * first[start],
+                        vertices * (first[c + 1] - first[start]));
+            }
         }
     }
 
     /**
-     * Interface that represents a curve.
+     * The polygons of the track of a curve, in a vertex buffer object.
+     *
+     * The vertex buffer holds, one after the other, a line on the inside of
+     * the track, a line on the outside, the start/finish line, the quads of
+     * the top and then the quads of the sides, two per polygon. The polygons
+     * are grouped in chunks of about CHUNKLENGTH along the track, each with
+     * a bounding box for frustum culling.
+     *
+     * The mesh can be built on any thread; the vertex buffer is created on
+     * the GL thread when it is first drawn.
      */
-    public interface Curve {
+    public static class TrackMesh {
+
+        // Floats per vertex: position (3), normal (3), texture coordinate (2).
+        final static public int STRIDE = 8;
+        // Length along the track covered by one copy of a texture.
+        final static private double TEXTURELENGTH = 0.6;
+        // Length along the track of a chunk, the unit of frustum culling.
+        final static private double CHUNKLENGTH = 4;
+        final public int count; // number of polygons along the track
+        final public int[] chunks; // first polygon of each chunk, and count at the end
+        // Minimum and maximum corner of the bounding box of each chunk.
+        final public double[][] lows, highs;
+        // First vertex of the inside line, outside line, start/finish line,
+        // top quads and side quads.
+        final public int inside, outside, finish, top, sides;
+        private FloatBuffer vertices; // vertex data until it is uploaded
+        int buffer = 0; // id of the vertex buffer object
 
         /**
-         * Converts a given parameter into a point on the curve.
+         * Tessellates the track of a curve. Every piece of the curve gets as
+         * many polygons as it needs to stay within the tolerance, so straight
+         * parts get few polygons and sharp corners get many.
          *
-         * @param t A parameter in the range 0 to 1.
-         * @return A vector representing the point resulting from the
-         * conversion.
+         * @param curve the curve on the inside of the track
+         * @param tolerance maximum distance between curve and polygons
+         * @param width width of the track
+         * @param minHeight height at which the sides of the track start
          */
-        public Vector getPoint(double t);
+        public TrackMesh(Curve curve, double tolerance, float width,
+                float minHeight) {
+            int[] counts = curve.subdivisions(tolerance);
+            int total = 0;
+            for (int n : counts) {
+                total += n;
+            }
+            count = total;
+            // Points, tangents and normals defining the inside of the track,
+            // and the points defining the outside, as x, y, z triples.
+            double[] points = new double[3 * (count + 1)];
+            double[] tangents = new double[3 * (count + 1)];
+            double[] normals = new double[3 * (count + 1)];
+            double[] offsets = new double[3 * (count + 1)];
+            // Distance along the inside of the track to each point.
+            double[] distances = new double[count + 1];
+            curve.tessellate(counts, points, tangents, normals);
+            for (int k = 0; k < points.length; k += 3) {
+                double length = sqrt(normals[k] * normals[k]
+                        + normals[k + 1] * normals[k + 1]
+                        + normals[k + 2] * normals[k + 2]);
+                for (int c = 0; c < 3; c++) {
+                    normals[k + c] /= length;
+                    offsets[k + c] = points[k + c] + normals[k + c] * width;
+                }
+            }
+            for (int i = 1; i <= count; i++) {
+                int k = 3 * i, l = 3 * (i - 1); // this point and the previous one
+                double dx = points[k] - points[l], dy = points[k + 1] - points[l + 1],
+                        dz = points[k + 2] - points[l + 2];
+                distances[i] = distances[i - 1] + sqrt(dx * dx + dy * dy + dz * dz);
+            }
 
-        /**
-         * Returns the tangent of a given parameter with the curve.
-         *
-         * @param t A parameter in the range 0 to 1.
-         * @return A vector representing the tangent at getPoint(t).
-         */
-        public Vector getTangent(double t);
+            // Split the polygons in chunks.
+            int[] starts = new int[count + 1];
+            int n = 0; // the number of chunks
+            for (int i = 0; i < count; i++) {
+                if (n == 0 || distances[i] - distances[starts[n - 1]] >= CHUNKLENGTH) {
+                    starts[n++] = i;
+                }
+            }
+            starts[n] = count;
+            chunks = Arrays.copyOf(starts, n + 1);
+            lows = new double[n][3];
+            highs = new double[n][3];
+            for (int c = 0; c < n; c++) {
+                Arrays.fill(lows[c], Double.POSITIVE_INFINITY);
+                Arrays.fill(highs[c], Double.NEGATIVE_INFINITY);
+                for (int i = chunks[c]; i <= chunks[c + 1]; i++) {
+                    for (int k = 0; k < 3; k++) {
+                        lows[c][k] = min(lows[c][k],
+                                min(points[3 * i + k], offsets[3 * i + k]));
+                        highs[c][k] = max(highs[c][k],
+                                max(points[3 * i + k], offsets[3 * i + k]));
+                    }
+                }
+                // The sides go down to minHeight.
+                lows[c][2] = min(lows[c][2], minHeight);
+            }
+
+            inside = 0;
+            outside = count + 1;
+            finish = 2 * (count + 1);
+            top = finish + 2;
+            sides = top + 4 * count;
+            vertices = Buffers.newDirectFloatBuffer(STRIDE * (sides + 8 * count));
+            // The lines, with an upwards pointing normal.
+            for (int i = 0; i <= count; i++) {
+                put(points, i, 0, 0, 1, 0, 0);
+            }
+            for (int i = 0; i <= count; i++) {
+                put(offsets, i, 0, 0, 1, 0, 0);
+            }
+            put(points, 0, 0, 0, 1, 0, 0);
+            put(offsets, 0, 0, 0, 1, 0, 0);
+            for (int i = 0; i < count; i++) {
+                // Texture coordinates along the track, by distance.
+                float v0 = (float) (distances[i] / TEXTURELENGTH);
+                float v1 = (float) (distances[i + 1] / TEXTURELENGTH);
+                put(points, i, 0, 0, 1, 0, v0);
+                put(offsets, i, 0, 0, 1, 1, v0);
+                put(offsets, i + 1, 0, 0, 1, 1, v1);
+                put(points, i + 1, 0, 0, 1, 0, v1);
+            }
+            for (int i = 0; i < count; i++) {
+                int k = 3 * i;
+                float u0 = (float) (distances[i] / TEXTURELENGTH);
+                float u1 = (float) (distances[i + 1] / TEXTURELENGTH);
+                double nx = normals[k], ny = normals[k + 1], nz = normals[k + 2];
+                // Inside of the track, using the reverse normal, spanning
+                // between the two points and minHeight.
+                put(points, i, -nx, -ny, -nz, u0, 0);
+                put(points, i + 1, -nx, -ny, -nz, u1, 0);
+                put(points[k + 3], points[k + 4], minHeight, -nx, -ny, -nz, u1, 1);
+                put(points[k], points[k + 1], minHeight, -nx, -ny, -nz, u0, 1);
+                // Outside of the track.
+                put(offsets, i, nx, ny, nz, u0, 0);
+                put(offsets, i + 1, nx, ny, nz, u1, 0);
+                put(offsets[k + 3], offsets[k + 4], minHeight, nx, ny, nz, u1, 1);
+                put(offsets[k], offsets[k + 1], minHeight, nx, ny, nz, u0, 1);
+            }
+            vertices.rewind();
+        }
+
+        /**
+         * Appends the vertex at index i of the given x, y, z triples.
+         */
+        private void put(double[] points, int i, double nx, double ny,
+                double nz, float s, float t) {
+            put(points[3 * i], points[3 * i + 1], points[3 * i + 2], nx, ny, nz,
+                    s, t);
+        }
+
+        /**
+         * Appends a vertex with the given position, normal and texture
+         * coordinate.
+         */
+        private void put(double x, double y, double z, double nx, double ny,
+                double nz, float s, float t) {
+            vertices.put((float) x).put((float) y).put((float) z);
+            vertices.put((float) nx).put((float) ny).put((float) nz);
+            vertices.put(s).put(t);
+        }
+
+        /**
+         * Creates the vertex buffer object and uploads all vertices to it.
+         * The vertices are not kept in memory afterwards.
+         *
+         * @param gl the GL context to create the buffer in
+         */
+        public void upload(GL2 gl) {
+            int[] ids = new int[1];
+            gl.glGenBuffers(1, ids, 0);
+            buffer = ids[0];
+            gl.glBindBuffer(GL_ARRAY_BUFFER, buffer);
+            gl.glBufferData(GL_ARRAY_BUFFER,
+                    vertices.capacity() * Buffers.SIZEOF_FLOAT, vertices,
+                    GL_STATIC_DRAW);
+            gl.glBindBuffer(GL_ARRAY_BUFFER, 0);
+            vertices = null;
+        }
+
+        /**
+         * Deletes the vertex buffer object, if it has been created.
+         *
+         * @param gl the GL context the buffer was created in
+         */
+        public void release(GL2 gl) {
+            if (buffer != 0) {
+                gl.glDeleteBuffers(1, new int[]{buffer}, 0);
+                buffer = 0;
+            }
+        }
+    }
+
+    /**
+     * Library of meshes of unit primitives, which are drawn with a transform
+     * to obtain primitives of any size. Each mesh is tessellated once for
+     * every number of slices and stacks it is used with, and kept in a vertex
+     * buffer object, such that drawing it again only takes a draw call.
+     *
+     * The primitives match their GLUT counterparts of size 1: the cylinder
+     * and cone have radius 1 and height 1 with their base at z = 0, the
+     * sphere has radius 1 and the cube has sides of length 1, both centered
+     * at the origin. Unlike glutSolidCone, the cone has a base.
+     */
+    public static class MeshLibrary {
+
+        // Floats per vertex: position (3) and normal (3).
+        final static private int STRIDE = 6;
+        // Kinds of meshes, part of the key of a mesh.
+        final static private int CYLINDER = 0, CONE = 1, SPHERE = 2, CUBE = 3;
+        // Key of each mesh, see key(), and its buffer id and number of
+        // vertices. Only a handful of meshes is used, so they are searched
+        // linearly, which does not allocate when drawing.
+        private long[] keys = new long[0];
+        private int[][] meshes = new int[0][];
+
+        /**
+         * Draws a cylinder of radius 1 and height 1 along the Z axis.
+         *
+         * @param gl the GL context to draw in
+         * @param slices number of subdivisions around the Z axis
+         * @param stacks number of subdivisions along the Z axis
+         */
+        public void cylinder(GL2 gl, int slices, int stacks) {
+            draw(gl, cylinderMesh(gl, slices, stacks));
+        }
+
+        /**
+         * Returns the mesh of a cylinder of radius 1 and height 1 along the Z
+         * axis, creating it if needed.
+         *
+         * @param gl the GL context to create the mesh in
+         * @param slices number of subdivisions around the Z axis
+         * @param stacks number of subdivisions along the Z axis
+         * @return the buffer id and number of vertices
+         */
+        public int[] cylinderMesh(GL2 gl, int slices, int stacks) {
+            long key = key(CYLINDER, slices, stacks);
+            int[] mesh = find(key);
+            if (mesh == null) {
+                mesh = upload(gl, key, tube(slices, stacks, 1, 1, true));
+            }
+            return mesh;
+        }
+
+        /**
+         * Draws a cone with a base of radius 1 and height 1 along the Z axis.
+         *
+         * @param gl the GL context to draw in
+         * @param slices number of subdivisions around the Z axis
+         * @param stacks number of subdivisions along the Z axis
+         */
+        public void cone(GL2 gl, int slices, int stacks) {
+            draw(gl, coneMesh(gl, slices, stacks));
+        }
+
+        /**
+         * Returns the mesh of a cone with a base of radius 1 and height 1
+         * along the Z axis, creating it if needed.
+         *
+         * @param gl the GL context to create the mesh in
+         * @param slices number of subdivisions around the Z axis
+         * @param stacks number of subdivisions along the Z axis
+         * @return the buffer id and number of vertices
+         */
+        public int[] coneMesh(GL2 gl, int slices, int stacks) {
+            long key = key(CONE, slices, stacks);
+            int[] mesh = find(key);
+            if (mesh == null) {
+                mesh = upload(gl, key, tube(slices, stacks, 1, 0, false));
+            }
+            return mesh;
+        }
+
+        /**
+         * Draws a sphere of radius 1 around the origin.
+         *
+         * @param gl the GL context to draw in
+         * @param slices number of subdivisions around the Z axis
+         * @param stacks number of subdivisions along the Z axis
+         */
+        public void sphere(GL2 gl, int slices, int stacks) {
+            long key = key(SPHERE, slices, stacks);
+            int[] mesh = find(key);
+            if (mesh == null) {
+                mesh = upload(gl, key, sphere(slices, stacks));
+            }
+            draw(gl, mesh);
+        }
+
+        /**
+         * Draws a cube with sides of length 1 around the origin.
+         *
+         * @param gl the GL context to draw in
+         */
+        public void cube(GL2 gl) {
+            draw(gl, cubeMesh(gl));
+        }
+
+        /**
+         * Returns the mesh of a cube with sides of length 1 around the origin,
+         * creating it if needed.
+         *
+         * @param gl the GL context to create the mesh in
+         * @return the buffer id and number of vertices
+         */
+        public int[] cubeMesh(GL2 gl) {
+            long key = key(CUBE, 0, 0);
+            int[] mesh = find(key);
+            if (mesh == null) {
+                mesh = upload(gl, key, cube());
+            }
+            return mesh;
+        }
+
+        /**
+         * Combines the kind of a mesh and its number of slices and stacks
+         * into a key.
+         */
+        private static long key(int kind, int slices, int stacks) {
+            return ((long) kind << 62) | ((long) slices << 31) | stacks;
+        }
+
+        /**
+         * Looks up the mesh with the given key.
+         *
+         * @return the buffer id and number of vertices, or null if the mesh
+         * has not been created yet
+         */
+        private int[] find(long key) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == key) {
+                    return meshes[i];
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Creates a vertex buffer object for the given triangles and stores
+         * it under the given key.
+         *
+         * @return the buffer id and number of vertices
+         */
+        private int[] upload(GL2 gl, long key, float[] triangles) {
+            int[] ids = new int[1];
+            gl.glGenBuffers(1, ids, 0);
+            gl.glBindBuffer(GL_ARRAY_BUFFER, ids[0]);
+            gl.glBufferData(GL_ARRAY_BUFFER,
+                    triangles.length * Buffers.SIZEOF_FLOAT,
+                    Buffers.newDirectFloatBuffer(triangles), GL_STATIC_DRAW);
+            gl.glBindBuffer(GL_ARRAY_BUFFER, 0);
+            int[] mesh = {ids[0], triangles.length / STRIDE};
+            keys = Arrays.copyOf(keys, keys.length + 1);
+            meshes = Arrays.copyOf(meshes, meshes.length + 1);
+            keys[keys.length - 1] = key;
+            meshes[meshes.length - 1] = mesh;
+            return mesh;
+        }
+
+        /**
+         * Draws the triangles of a mesh.
+         */
+        private void draw(GL2 gl, int[] mesh) {
+            gl.glBindBuffer(GL_ARRAY_BUFFER, mesh[0]);
+            gl.glEnableClientState(GL_VERTEX_ARRAY);
+            gl.glEnableClientState(GL_NORMAL_ARRAY);
+            gl.glVertexPointer(3, GL_FLOAT, STRIDE * Buffers.SIZEOF_FLOAT, 0);
+            gl.glNormalPointer(GL_FLOAT, STRIDE * Buffers.SIZEOF_FLOAT,
+                    3 * Buffers.SIZEOF_FLOAT);
+            gl.glDrawArrays(GL_TRIANGLES, 0, mesh[1]);
+            gl.glDisableClientState(GL_NORMAL_ARRAY);
+            gl.glDisableClientState(GL_VERTEX_ARRAY);
+            gl.glBindBuffer(GL_ARRAY_BUFFER, 0);
+        }
+
+        /**
+         * Tessellates the side of a cylinder or cone from z = 0 to z = 1,
+         * whose radius goes linearly from r0 to r1, with a disk at the base
+         * and, if top is true, at the top.
+         *
+         * @return the triangles, as STRIDE floats per vertex
+         */
+        static float[] tube(int slices, int stacks, double r0, double r1,
+                boolean top) {
+            int triangles = 2 * slices * stacks + (top ? 2 : 1) * slices;
+            float[] result = new float[3 * STRIDE * triangles];
+            int k = 0; // the next float in the result
+            // The normal of the side leans up as the radius decreases.
+            double lean = r0 - r1;
+            double scale = 1 / sqrt(1 + lean * lean);
+            for (int j = 0; j < stacks; j++) {
+                double z0 = (double) j / stacks, z1 = (double) (j + 1) / stacks;
+                double ra = r0 + (r1 - r0) * z0, rb = r0 + (r1 - r0) * z1;
+                for (int i = 0; i < slices; i++) {
+                    double a0 = 2 * PI * i / slices, a1 = 2 * PI * (i + 1) / slices;
+                    double c0 = cos(a0), s0 = sin(a0), c1 = cos(a1), s1 = sin(a1);
+                    // Two triangles, counterclockwise seen from outside.
+                    k = put(result, k, ra * c0, ra * s0, z0, c0 * scale, s0 * scale, lean * scale);
+                    k = put(result, k, ra * c1, ra * s1, z0, c1 * scale, s1 * scale, lean * scale);
+                    k = put(result, k, rb * c1, rb * s1, z1, c1 * scale, s1 * scale, lean * scale);
+                    k = put(result, k, ra * c0, ra * s0, z0, c0 * scale, s0 * scale, lean * scale);
+                    k = put(result, k, rb * c1, rb * s1, z1, c1 * scale, s1 * scale, lean * scale);
+                    k = put(result, k, rb * c0, rb * s0, z1, c0 * scale, s0 * scale, lean * scale);
+                }
+            }
+            for (int i = 0; i < slices; i++) {
+                double a0 = 2 * PI * i / slices, a1 = 2 * PI * (i + 1) / slices;
+                // The base, facing down.
+                k = put(result, k, 0, 0, 0, 0, 0, -1);
+                k = put(result, k, r0 * cos(a1), r0 * sin(a1), 0, 0, 0, -1);
+                k = put(result, k, r0 * cos(a0), r0 * sin(a0), 0, 0, 0, -1);
+                if (top) {
+                    // The top, facing up.
+                    k = put(result, k, 0, 0, 1, 0, 0, 1);
+                    k = put(result, k, r1 * cos(a0), r1 * sin(a0), 1, 0, 0, 1);
+                    k = put(result, k, r1 * cos(a1), r1 * sin(a1), 1, 0, 0, 1);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Tessellates a sphere of radius 1, from the north pole down.
+         *
+         * @return the triangles, as STRIDE floats per vertex
+         */
+        static float[] sphere(int slices, int stacks) {
+            float[] result = new float[3 * STRIDE * 2 * slices * stacks];
+            int k = 0; // the next float in the result
+            for (int j = 0; j < stacks; j++) {
+                double t0 = PI * j / stacks, t1 = PI * (j + 1) / stacks;
+                for (int i = 0; i < slices; i++) {
+                    double a0 = 2 * PI * i / slices, a1 = 2 * PI * (i + 1) / slices;
+                    double[][] p = {
+                        {sin(t0) * cos(a0), sin(t0) * sin(a0), cos(t0)},
+                        {sin(t1) * cos(a0), sin(t1) * sin(a0), cos(t1)},
+                        {sin(t1) * cos(a1), sin(t1) * sin(a1), cos(t1)},
+                        {sin(t0) * cos(a1), sin(t0) * sin(a1), cos(t0)}};
+                    // Two triangles, counterclockwise seen from outside. On a
+                    // sphere of radius 1, the normal equals the position.
+                    for (int v : new int[]{0, 1, 2, 0, 2, 3}) {
+                        k = put(result, k, p[v][0], p[v][1], p[v][2],
+                                p[v][0], p[v][1], p[v][2]);
+                    }
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Tessellates a cube with sides of length 1 around the origin.
+         *
+         * @return the triangles, as STRIDE floats per vertex
+         */
+        static float[] cube() {
+            float[] result = new float[3 * STRIDE * 12];
+            int k = 0; // the next float in the result
+            for (int axis = 0; axis < 3; axis++) {
+                for (int sign = -1; sign <= 1; sign += 2) {
+                    // Two axes u, v in the face, such that u x v = sign * axis.
+                    int u = (axis + (sign > 0 ? 1 : 2)) % 3;
+                    int v = (axis + (sign > 0 ? 2 : 1)) % 3;
+                    double[][] corners = {{-1, -1}, {1, -1}, {1, 1}, {-1, 1}};
+                    for (int c : new int[]{0, 1, 2, 0, 2, 3}) {
+                        double[] p = new double[3], n = new double[3];
+                        p[axis] = 0.5 * sign;
+                        p[u] = 0.5 * corners[c][0];
+                        p[v] = 0.5 * corners[c][1];
+                        n[axis] = sign;
+                        k = put(result, k, p[0], p[1], p[2], n[0], n[1], n[2]);
+                    }
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Stores a vertex with the given position and normal at index k.
+         *
+         * @return the index after the vertex
+         */
+        private static int put(float[] result, int k, double x, double y,
+                double z, double nx, double ny, double nz) {
+            result[k] = (float) x;
+            result[k + 1] = (float) y;
+            result[k + 2] = (float) z;
+            result[k + 3] = (float) nx;
+            result[k + 4] = (float) ny;
+            result[k + 5] = (float) nz;
+            return k + STRIDE;
+        }
+    }
+
+    /**
+     * Draws many robots with one instanced draw call per part type, instead
+     * of a sequence of matrix operations and draw calls per robot.
+     *
+     * For every robot, its model matrix, the angle of its legs and arms and
+     * the index of its material are added to an instance buffer. This buffer
+     * is read through a buffer texture, since attribute divisors are not
+     * part of the GL2 profile. A vertex shader places each part by applying
+     * the same translations and limb rotations as the Robot parts do, and
+     * lights it like the fixed function pipeline would with GL_LIGHT0.
+     *
+     * Unlike the Robot parts, the torso and head are not textured, and the
+     * parts use fewer slices. Both only matter for robots up close, which
+     * there are few of when drawing large numbers of robots.
+     */
+    public static class RobotInstancer {
+
+        // The parts of a robot, each drawn with one instanced draw call.
+        final static private int HIP = 0, UPPERLEG = 1, KNEE = 2,
+                LOWERLEG = 3, SHOULDER = 4, ARM = 5, TORSO = 6, HEAD = 7, HAT = 8;
+        // Texels per robot: four columns of the model matrix, and the angle
+        // and material index.
+        final static private int TEXELS = 5;
+        final static private int SLICES = 8; // slices of cylinders and cones
+        final static private String VERTEX = ""
+                + "#version 140\n"
+                + "uniform mat4 projection;\n"
+                + "uniform mat4 view;\n"
+                + "uniform samplerBuffer instances;\n"
+                + "uniform int part;\n"
+                + "uniform int copies;\n"
+                + "uniform vec3 legs;\n" // length, width, thickness
+                + "uniform vec3 arms;\n" // length, width, thickness
+                + "uniform vec3 torso;\n" // height, width, thickness
+                + "uniform vec2 head;\n" // height of the head and of the hat
+                + "uniform vec4 light;\n" // in world coordinates
+                + "uniform vec4 materials[32];\n"
+                + "in vec3 position;\n"
+                + "in vec3 normal;\n"
+                + "out vec4 color;\n"
+                + "mat4 translate(float x, float y, float z) {\n"
+                + "    return mat4(1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, x, y, z, 1);\n"
+                + "}\n"
+                + "mat4 rotateX(float degrees) {\n"
+                + "    float c = cos(radians(degrees)), s = sin(radians(degrees));\n"
+                + "    return mat4(1, 0, 0, 0, 0, c, s, 0, 0, -s, c, 0, 0, 0, 0, 1);\n"
+                + "}\n"
+                + "mat4 rotateY(float degrees) {\n"
+                + "    float c = cos(radians(degrees)), s = sin(radians(degrees));\n"
+                + "    return mat4(c, 0, -s, 0, 0, 1, 0, 0, s, 0, c, 0, 0, 0, 0, 1);\n"
+                + "}\n"
+                + "void main() {\n"
+                + "    int robot = gl_InstanceID / copies;\n"
+                + "    float s = (copies == 2 && gl_InstanceID % 2 == 0) ? -1.0 : 1.0;\n"
+                + "    mat4 model = mat4(texelFetch(instances, 5 * robot),\n"
+                + "            texelFetch(instances, 5 * robot + 1),\n"
+                + "            texelFetch(instances, 5 * robot + 2),\n"
+                + "            texelFetch(instances, 5 * robot + 3));\n"
+                + "    vec4 state = texelFetch(instances, 5 * robot + 4);\n"
+                + "    float angle = state.x;\n"
+                + "    int material = 4 * int(state.y);\n"
+                + "    float hips = cos(radians(angle)) * legs.x;\n"
+                + "    float shoulders = hips + torso.x;\n"
+                + "    mat4 frame;\n"
+                + "    vec3 size;\n"
+                + "    if (part == " + HIP + ") {\n"
+                + "        frame = translate(s * 0.5 * torso.y, 0.0, hips - legs.z / 3.0)\n"
+                + "                * rotateY(s * -90.0);\n"
+                + "        size = vec3(0.5 * legs.z, 0.5 * legs.z, legs.y);\n"
+                + "    } else if (part == " + SHOULDER + ") {\n"
+                + "        frame = translate(s * (0.5 * torso.y + arms.y), 0.0,\n"
+                + "                shoulders - 0.5 * arms.y) * rotateY(s * -90.0);\n"
+                + "        size = vec3(0.5 * arms.y, 0.5 * arms.z, arms.y);\n"
+                + "    } else if (part == " + ARM + ") {\n"
+                + "        frame = translate(0.0, 0.0, shoulders - 0.5 * arms.y)\n"
+                + "                * rotateX(s * -angle)\n"
+                + "                * translate(s * 0.5 * (torso.y + arms.y), 0.0, -0.5 * arms.x);\n"
+                + "        size = arms.yzx;\n"
+                + "    } else if (part == " + TORSO + ") {\n"
+                + "        frame = translate(0.0, 0.0, hips + 0.5 * torso.x);\n"
+                + "        size = torso.yzx;\n"
+                + "    } else if (part == " + HEAD + ") {\n"
+                + "        frame = translate(0.0, 0.0, shoulders + 0.5 * head.x);\n"
+                + "        size = vec3(head.x);\n"
+                + "    } else if (part == " + HAT + ") {\n"
+                + "        frame = translate(0.0, 0.0, shoulders + head.x - 0.1);\n"
+                + "        size = vec3(0.5 * head.y, 0.5 * head.y, head.y);\n"
+                + "    } else {\n"
+                + "        // The upper leg, knee and lower leg hang from the hip.\n"
+                + "        frame = translate(0.0, 0.0, hips) * rotateX(s * angle)\n"
+                + "                * translate(s * 0.5 * (torso.y - legs.y), 0.0,\n"
+                + "                        -0.25 * hips - 0.5 * legs.z);\n"
+                + "        size = vec3(legs.y, legs.z, 0.5 * legs.x);\n"
+                + "        if (part == " + KNEE + ") {\n"
+                + "            frame = frame * translate(s * 0.5 * legs.y, 0.0, -0.25 * legs.x)\n"
+                + "                    * rotateY(s * -90.0);\n"
+                + "            size = vec3(0.5 * legs.y, 0.5 * legs.z, legs.y);\n"
+                + "        } else if (part == " + LOWERLEG + ") {\n"
+                + "            frame = frame * translate(0.0, 0.0, -0.25 * legs.x)\n"
+                + "                    * rotateX(s * -angle) * translate(0.0, 0.0, -0.25 * legs.x);\n"
+                + "        }\n"
+                + "    }\n"
+                + "    mat4 modelview = view * model * frame;\n"
+                + "    vec4 eye = modelview * vec4(size * position, 1);\n"
+                + "    gl_Position = projection * eye;\n"
+                // The frame and model are rotations and translations, so only
+                // the scaling needs to be inverted for the normal.
+                + "    vec3 n = normalize(mat3(modelview) * (normal / size));\n"
+                + "    vec4 source = view * light;\n"
+                + "    vec3 l = normalize(source.xyz - source.w * eye.xyz);\n"
+                + "    float diffuse = max(dot(n, l), 0.0);\n"
+                + "    float shininess = materials[material + 3].x;\n"
+                // The scene ambient of 0.2 plus the ambient of GL_LIGHT0.
+                + "    color = 1.2 * materials[material] + diffuse * materials[material + 1];\n"
+                + "    if (diffuse > 0.0) {\n"
+                + "        float specular = max(dot(n, normalize(l + vec3(0, 0, 1))), 0.0);\n"
+                + "        color += (shininess > 0.0 ? pow(specular, shininess) : 1.0)\n"
+                + "                * materials[material + 2];\n"
+                + "    }\n"
+                + "    color.a = materials[material + 1].a;\n"
+                + "}\n";
+        final static private String FRAGMENT = ""
+                + "#version 140\n"
+                + "in vec4 color;\n"
+                + "out vec4 fragment;\n"
+                + "void main() {\n"
+                + "    fragment = color;\n"
+                + "}\n";
+        private int program = 0; // shader program, 0 if not created yet
+        private boolean failed = false; // whether the shaders can't be used
+        private int buffer, texture; // instance buffer and its buffer texture
+        private FloatBuffer instances = Buffers.newDirectFloatBuffer(0);
+        private int count = 0; // number of robots added since the last draw
+        private boolean reported = false; // whether the first draw was logged
+        // Locations of the uniforms of the shader program, see VERTEX.
+        private int projectionLocation, viewLocation, lightLocation,
+                legsLocation, armsLocation, torsoLocation, headLocation,
+                materialsLocation, instancesLocation, partLocation,
+                copiesLocation;
+        // Materials indexed by add, as four vec4's per material.
+        final private float[] palette;
+
+        /**
+         * Constructs an instancer for robots in the specified materials.
+         *
+         * @param materials the materials indexed by add, at most 8
+         */
+        public RobotInstancer(float[]... materials) {
+            palette = new float[16 * materials.length];
+            for (int i = 0; i < materials.length; i++) {
+                System.arraycopy(materials[i], 0, palette, 16 * i, 13);
+            }
+        }
+
+        /**
+         * Determines whether instanced drawing is possible, and creates the
+         * shader program and instance buffer the first time it is.
+         *
+         * @param gl the GL context to draw in
+         * @return whether draw can be used
+         */
+        public boolean isAvailable(GL2 gl) {
+            if (program != 0 || failed) {
+                return !failed;
+            }
+            failed = true;
+            if (!gl.isFunctionAvailable("glDrawArraysInstanced")
+                    || !gl.isFunctionAvailable("glTexBuffer")
+                    || !gl.isFunctionAvailable("glCreateShader")) {
+                Logger.getLogger(RobotRace.class.getName()).log(Level.INFO,
+                        "Instanced drawing is not supported, drawing robots one by one");
+                return false;
+            }
+            int vertex = compile(gl, GL_VERTEX_SHADER, VERTEX);
+            int fragment = compile(gl, GL_FRAGMENT_SHADER, FRAGMENT);
+            if (vertex == 0 || fragment == 0) {
+                return false;
+            }
+            program = gl.glCreateProgram();
+            gl.glAttachShader(program, vertex);
+            gl.glAttachShader(program, fragment);
+            gl.glBindAttribLocation(program, 0, "position");
+            gl.glBindAttribLocation(program, 1, "normal");
+            gl.glLinkProgram(program);
+            gl.glDeleteShader(vertex);
+            gl.glDeleteShader(fragment);
+            int[] status = new int[1];
+            gl.glGetProgramiv(program, GL_LINK_STATUS, status, 0);
+            if (status[0] == 0) {
+                byte[] log = new byte[4096];
+                int[] length = new int[1];
+                gl.glGetProgramInfoLog(program, log.length, length, 0, log, 0);
+                Logger.getLogger(RobotRace.class.getName()).log(Level.WARNING,
+                        "Could not link robot shaders: {0}", new String(log, 0, length[0]));
+                return false;
+            }
+            projectionLocation = gl.glGetUniformLocation(program, "projection");
+            viewLocation = gl.glGetUniformLocation(program, "view");
+            lightLocation = gl.glGetUniformLocation(program, "light");
+            legsLocation = gl.glGetUniformLocation(program, "legs");
+            armsLocation = gl.glGetUniformLocation(program, "arms");
+            torsoLocation = gl.glGetUniformLocation(program, "torso");
+            headLocation = gl.glGetUniformLocation(program, "head");
+            materialsLocation = gl.glGetUniformLocation(program, "materials");
+            instancesLocation = gl.glGetUniformLocation(program, "instances");
+            partLocation = gl.glGetUniformLocation(program, "part");
+            copiesLocation = gl.glGetUniformLocation(program, "copies");
+
+            // The instance buffer, read by the shader as a buffer texture.
+            int[] ids = new int[1];
+            gl.glGenBuffers(1, ids, 0);
+            buffer = ids[0];
+            gl.glGenTextures(1, ids, 0);
+            texture = ids[0];
+            gl.glBindBuffer(GL_TEXTURE_BUFFER, buffer);
+            gl.glBindTexture(GL_TEXTURE_BUFFER, texture);
+            gl.glTexBuffer(GL_TEXTURE_BUFFER, GL_RGBA32F, buffer);
+            gl.glBindTexture(GL_TEXTURE_BUFFER, 0);
+            gl.glBindBuffer(GL_TEXTURE_BUFFER, 0);
+            failed = false;
+            return true;
+        }
+
+        /**
+         * Compiles a shader, logging the errors if it fails.
+         *
+         * @return the shader, or 0 if it could not be compiled
+         */
+        private static int compile(GL2 gl, int type, String source) {
+            int shader = gl.glCreateShader(type);
+            gl.glShaderSource(shader, 1, new String[]{source}, (int[]) null, 0);
+            gl.glCompileShader(shader);
+            int[] status = new int[1];
+            gl.glGetShaderiv(shader, GL_COMPILE_STATUS, status, 0);
+            if (status[0] == 0) {
+                byte[] log = new byte[4096];
+                int[] length = new int[1];
+                gl.glGetShaderInfoLog(shader, log.length, length, 0, log, 0);
+                Logger.getLogger(RobotRace.class.getName()).log(Level.WARNING,
+                        "Could not compile robot shader: {0}", new String(log, 0, length[0]));
+                gl.glDeleteShader(shader);
+                return 0;
+            }
+            return shader;
+        }
+
+        /**
+         * Adds a robot to be drawn with the next call to draw.
+         *
+         * @param model model matrix of the robot in column-major order
+         * @param angle angle of the legs and arms of the robot
+         * @param material index of the material of the robot
+         */
+        public void add(double[] model, float angle, int material) {
+            if (instances.remaining() < 4 * TEXELS) {
+                FloatBuffer larger = Buffers.newDirectFloatBuffer(
+                        max(2 * instances.capacity(), 64 * 4 * TEXELS));
+                instances.flip();
+                larger.put(instances);
+                instances = larger;
+            }
+            for (int k = 0; k < 16; k++) {
+                instances.put((float) model[k]);
+            }
+            instances.put(angle).put(material).put(0).put(0);
+            count++;
+        }
+
+        /**
+         * Draws all robots added since the last call, all shaped like the
+         * specified robot. The matrices are passed in instead of read back
+         * from OpenGL, which would wait for the driver.
+         *
+         * @param gl the GL context to draw in
+         * @param meshes the library containing the meshes of the parts
+         * @param shape robot whose dimensions are used for all robots
+         * @param projection the projection matrix in column-major order
+         * @param view the modelview matrix of the camera in column-major order
+         * @param light the direction of the light in world coordinates
+         */
+        public void draw(GL2 gl, MeshLibrary meshes, Robot shape,
+                float[] projection, float[] view, Vector light) {
+            if (count == 0) {
+                return;
+            }
+            if (!reported) {
+                reported = true;
+                Logger.getLogger(RobotRace.class.getName()).log(Level.INFO,
+                        "Drawing robots instanced, {0} in the first frame", count);
+            }
+            instances.flip();
+            gl.glBindBuffer(GL_TEXTURE_BUFFER, buffer);
+            gl.glBufferData(GL_TEXTURE_BUFFER, instances.remaining()
+                    * Buffers.SIZEOF_FLOAT, instances, GL_STREAM_DRAW);
+            gl.glBindBuffer(GL_TEXTURE_BUFFER, 0);
+            instances.clear();
+
+            gl.glUseProgram(program);
+            gl.glUniformMatrix4fv(projectionLocation, 1, false, projection, 0);
+            gl.glUniformMatrix4fv(viewLocation, 1, false, view, 0);
+            // Like GL_LIGHT0, the light is a direction (w = 0).
+            gl.glUniform4f(lightLocation, (float) light.x(), (float) light.y(),
+                    (float) light.z(), 0);
+            gl.glUniform3f(legsLocation, shape.legs.length,
+                    shape.legs.width, shape.legs.thickness);
+            gl.glUniform3f(armsLocation, shape.arms.length,
+                    shape.arms.width, shape.arms.thickness);
+            gl.glUniform3f(torsoLocation, shape.torsoPart.height,
+                    shape.torsoPart.width, shape.torsoPart.thickness);
+            gl.glUniform2f(headLocation, shape.headPart.height,
+                    shape.hatPart.height);
+            gl.glUniform4fv(materialsLocation, palette.length / 4, palette, 0);
+            gl.glActiveTexture(GL_TEXTURE0);
+            gl.glBindTexture(GL_TEXTURE_BUFFER, texture);
+            gl.glUniform1i(instancesLocation, 0);
+
+            gl.glEnableVertexAttribArray(0);
+            gl.glEnableVertexAttribArray(1);
+            int[] cylinder = meshes.cylinderMesh(gl, SLICES, 1);
+            int[] cube = meshes.cubeMesh(gl);
+            draw(gl, HIP, 2, cylinder);
+            draw(gl, UPPERLEG, 2, cube);
+            draw(gl, KNEE, 2, cylinder);
+            draw(gl, LOWERLEG, 2, cube);
+            draw(gl, SHOULDER, 2, cylinder);
+            draw(gl, ARM, 2, cube);
+            draw(gl, TORSO, 1, cube);
+            draw(gl, HEAD, 1, cube);
+            draw(gl, HAT, 1, meshes.coneMesh(gl, SLICES, 1));
+            gl.glDisableVertexAttribArray(1);
+            gl.glDisableVertexAttribArray(0);
+            gl.glBindBuffer(GL_ARRAY_BUFFER, 0);
+            gl.glBindTexture(GL_TEXTURE_BUFFER, 0);
+            gl.glUseProgram(0);
+            count = 0;
+        }
+
+        /**
+         * Draws one part of all robots, or both the left and right one if
+         * copies is 2.
+         */
+        private void draw(GL2 gl, int part, int copies, int[] mesh) {
+            gl.glUniform1i(partLocation, part);
+            gl.glUniform1i(copiesLocation, copies);
+            gl.glBindBuffer(GL_ARRAY_BUFFER, mesh[0]);
+            int stride = MeshLibrary.STRIDE * Buffers.SIZEOF_FLOAT;
+            gl.glVertexAttribPointer(0, 3, GL_FLOAT, false, stride, 0);
+            gl.glVertexAttribPointer(1, 3, GL_FLOAT, false, stride,
+                    3 * Buffers.SIZEOF_FLOAT);
+            gl.glDrawArraysInstanced(GL_TRIANGLES, 0, mesh[1], copies * count);
+        }
+    }
+
+    /**
+     * Interface that represents a curve.
+     */
+    public interface Curve {
+
+        /**
+         * Converts a given parameter into a point on the curve.
+         *
+         * @param t A parameter in the range 0 to 1.
+         * @return A vector representing the point resulting from the
+         * conversion.
+         */
+        public Vector getPoint(double t);
+
+        /**
+         * Returns the tangent of a given parameter with the curve.
+         *
+         * @param t A parameter in the range 0 to 1.
+         * @return A vector representing the tangent at getPoint(t).
+         */
+        public Vector getTangent(double t);
+
+        /**
+         * Returns the normal of a given parameter with the curve.
+         *
+         * @param t A parameter in the range 0 to 1.
+         * @return A vector representing the normal between t and the curve.
+         */
+        public Vector getNormalVector(double t);
+
+        /**
+         * Computes the point for a given parameter without allocating.
+         *
+         * @param t A parameter in the range 0 to 1.
+         * @param out An array of length 3 to store the x, y and z coordinates
+         * of getPoint(t) in.
+         */
+        public void getPoint(double t, double[] out);
+
+        /**
+         * Computes the tangent for a given parameter without allocating.
+         *
+         * @param t A parameter in the range 0 to 1.
+         * @param out An array of length 3 to store the components of
+         * getTangent(t) in.
+         */
+        public void getTangent(double t, double[] out);
+
+        /**
+         * Computes the normal for a given parameter without allocating.
+         *
+         * @param t A parameter in the range 0 to 1.
+         * @param out An array of length 3 to store the components of
+         * getNormalVector(t) in.
+         */
+        public void getNormalVector(double t, double[] out);
+
+        /**
+         * Computes the points, tangents and normals for many parameters at
+         * once. Implementations can do this faster than calling getPoint,
+         * getTangent and getNormalVector for every parameter.
+         *
+         * @param ts The parameters, each in the range 0 to 1.
+         * @param points An array of length 3 * ts.length to store the x, y
+         * and z coordinates of the points in, or null if they are not needed.
+         * @param tangents An array of the same length for the tangents, or
+         * null.
+         * @param normals An array of the same length for the normals, or null.
+         */
+        public default void evaluate(double[] ts, double[] points,
+                double[] tangents, double[] normals) {
+            double[] out = new double[3];
+            for (int i = 0; i < ts.length; i++) {
+                if (points != null) {
+                    getPoint(ts[i], out);
+                    System.arraycopy(out, 0, points, 3 * i, 3);
+                }
+                if (tangents != null) {
+                    getTangent(ts[i], out);
+                    System.arraycopy(out, 0, tangents, 3 * i, 3);
+                }
+                if (normals != null) {
+                    getNormalVector(ts[i], out);
+                    System.arraycopy(out, 0, normals, 3 * i, 3);
+                }
+            }
+        }
+
+        /**
+         * Computes the orientation of an object moving along the curve, as a
+         * rotation matrix that maps the Y axis to the tangent and the Z axis
+         * to the up direction. The up direction follows a rotation-minimizing
+         * frame along the curve, so it tilts with the slope of the curve but
+         * does not twist around it.
+         *
+         * @param t A parameter in the range 0 to 1.
+         * @param out An array of length 16 to store the matrix in, in column
+         * major order as expected by glMultMatrixd.
+         */
+        public void getOrientation(double t, double[] out);
+
+        /**
+         * Computes the points, tangents and normals at the parameters
+         * t = k / samples for 0 <= k <= samples in one pass.
+         *
+         * @param samples The number of intervals the range 0 to 1 is split in.
+         * @param points An array of length 3 * (samples + 1) to store the x,
+         * y and z coordinates of the points in.
+         * @param tangents An array of the same length for the tangents.
+         * @param normals An array of the same length for the normals.
+         */
+        public void tessellate(int samples, double[] points, double[] tangents,
+                double[] normals);
+
+        /**
+         * Computes in how many intervals each piece of the curve has to be
+         * split, such that the line between two consecutive samples is
+         * nowhere further than the given tolerance from the curve. The pieces
+         * split the range 0 to 1 in equal parts; a curve that is smooth all
+         * the way round is a single piece.
+         *
+         * @param tolerance The maximum distance between curve and lines.
+         * @return The number of intervals for each piece, at least 1.
+         */
+        public int[] subdivisions(double tolerance);
+
+        /**
+         * Computes the points, tangents and normals for a subdivision as
+         * returned by subdivisions. The intervals of a piece are evenly spaced
+         * in t, and the samples of all pieces are stored one after the other,
+         * ending with the sample at t = 1.
+         *
+         * @param counts The number of intervals for each piece.
+         * @param points An array of length 3 * (sum of counts + 1) to store
+         * the x, y and z coordinates of the points in.
+         * @param tangents An array of the same length for the tangents.
+         * @param normals An array of the same length for the normals.
+         */
+        public void tessellate(int[] counts, double[] points, double[] tangents,
+                double[] normals);
+
+        /**
+         * Returns the length of the curve from t = 0 to t = 1.
+         *
+         * @return The length of the curve.
+         */
+        public double length();
+
+        /**
+         * Converts a distance along the curve into a parameter, such that
+         * advancing the distance at a constant rate moves at a constant
+         * speed along the curve.
+         *
+         * @param s A distance from getPoint(0) along the curve, which is
+         * taken modulo length().
+         * @return The parameter t in the range 0 to 1 at that distance.
+         */
+        public double parameterAt(double s);
+
+        /**
+         * Finds the parameter of the point on the curve that is closest to a
+         * given position.
+         *
+         * The default implementation samples the curve at 256 parameters and
+         * refines the closest sample by ternary search between its
+         * neighbours.
+         *
+         * @param p A position anywhere in space.
+         * @return The parameter t in the range 0 to 1 of the closest point.
+         */
+        public default double closestParameter(Vector p) {
+            final int samples = 256;
+            double[] q = new double[3];
+            int best = 0; // the closest sample
+            double min = Double.POSITIVE_INFINITY;
+            for (int k = 0; k < samples; k++) {
+                getPoint((double) k / samples, q);
+                double d = (q[0] - p.x()) * (q[0] - p.x())
+                        + (q[1] - p.y()) * (q[1] - p.y())
+                        + (q[2] - p.z()) * (q[2] - p.z());
+                if (d < min) {
+                    min = d;
+                    best = k;
+                }
+            }
+            double lo = (best - 1.0) / samples, hi = (best + 1.0) / samples;
+            for (int i = 0; i < 40; i++) {
+                double t1 = lo + (hi - lo) / 3, t2 = hi - (hi - lo) / 3;
+                getPoint(t1, q);
+                double d1 = (q[0] - p.x()) * (q[0] - p.x())
+                        + (q[1] - p.y()) * (q[1] - p.y())
+                        + (q[2] - p.z()) * (q[2] - p.z());
+                getPoint(t2, q);
+                double d2 = (q[0] - p.x()) * (q[0] - p.x())
+                        + (q[1] - p.y()) * (q[1] - p.y())
+                        + (q[2] - p.z()) * (q[2] - p.z());
+                if (d1 < d2) {
+                    hi = t2;
+                } else {
+                    lo = t1;
+                }
+            }
+            double t = (lo + hi) / 2;
+            return t - floor(t);
+        }
+
+        /**
+         * Finds the closest parameters for many positions at once.
+         *
+         * @param positions The x, y and z coordinates of the positions.
+         * @param ts An array of length positions.length / 3 to store the
+         * parameters in.
+         */
+        public default void closestParameters(double[] positions, double[] ts) {
+            for (int i = 0; i < ts.length; i++) {
+                ts[i] = closestParameter(new Vector(positions[3 * i],
+                        positions[3 * i + 1], positions[3 * i + 2]));
+            }
+        }
+    }
+
+    /**
+     * Implementation of Curve that stores the points, tangents and normals of
+     * another curve at evenly spaced parameters. Other parameters are
+     * answered by linear interpolation between the two nearest samples, which
+     * is much cheaper than evaluating most curves.
+     *
+     * The error of the interpolated points is estimated when the samples are
+     * taken, by comparing the curve and the interpolation halfway between
+     * each pair of samples, where the error of linear interpolation of a
+     * smooth curve is largest.
+     */
+    public static class CachedCurve implements Curve {
+
+        final private Curve curve; // the curve that is cached
+        final private int samples; // number of intervals between the samples
+        final private double[] points; // x, y, z of the point at each sample
+        final private double[] tangents; // x, y, z of the tangent at each sample
+        final private double[] normals; // x, y, z of the normal at each sample
+        final private double error; // estimated error of the points
+
+        /**
+         * Samples a curve.
+         *
+         * @param curve the curve to sample
+         * @param samples number of intervals the range [0,1] is split in
+         */
+        public CachedCurve(Curve curve, int samples) {
+            this.curve = curve;
+            this.samples = samples;
+            points = new double[3 * (samples + 1)];
+            tangents = new double[3 * (samples + 1)];
+            normals = new double[3 * (samples + 1)];
+            double[] sample = new double[3];
+            for (int k = 0; k <= samples; k++) {
+                // Curves wrap around at t = 1, so the last sample is taken
+                // just before it.
+                double t = (k < samples) ? (double) k / samples : 1 - 1e-12;
+                curve.getPoint(t, sample);
+                System.arraycopy(sample, 0, points, 3 * k, 3);
+                curve.getTangent(t, sample);
+                System.arraycopy(sample, 0, tangents, 3 * k, 3);
+                curve.getNormalVector(t, sample);
+                System.arraycopy(sample, 0, normals, 3 * k, 3);
+            }
+            double max = 0; // largest error found so far
+            double[] interpolated = new double[3];
+            for (int k = 0; k < samples; k++) {
+                double t = (k + 0.5) / samples;
+                curve.getPoint(t, sample);
+                getPoint(t, interpolated);
+                max = max(max, sqrt(
+                        (sample[0] - interpolated[0]) * (sample[0] - interpolated[0])
+                        + (sample[1] - interpolated[1]) * (sample[1] - interpolated[1])
+                        + (sample[2] - interpolated[2]) * (sample[2] - interpolated[2])));
+            }
+            error = max;
+        }
+
+        /**
+         * Returns the estimated largest distance between a point of the
+         * cached curve and the corresponding point of the original curve.
+         */
+        public double error() {
+            return error;
+        }
+
+        @Override
+        public Vector getPoint(double t) {
+            double[] point = new double[3];
+            getPoint(t, point);
+            return new Vector(point[0], point[1], point[2]);
+        }
+
+        @Override
+        public Vector getTangent(double t) {
+            double[] tangent = new double[3];
+            getTangent(t, tangent);
+            return new Vector(tangent[0], tangent[1], tangent[2]);
+        }
+
+        @Override
+        public Vector getNormalVector(double t) {
+            double[] normal = new double[3];
+            getNormalVector(t, normal);
+            return new Vector(normal[0], normal[1], normal[2]);
+        }
+
+        @Override
+        public void getPoint(double t, double[] out) {
+            interpolate(points, t, out);
+        }
+
+        @Override
+        public void getTangent(double t, double[] out) {
+            interpolate(tangents, t, out);
+        }
+
+        @Override
+        public void getNormalVector(double t, double[] out) {
+            interpolate(normals, t, out);
+        }
+
+        @Override
+        public void evaluate(double[] ts, double[] points, double[] tangents,
+                double[] normals) {
+            for (int i = 0; i < ts.length; i++) {
+                double u = (ts[i] - floor(ts[i])) * samples; // position in intervals
+                int k = min((int) u, samples - 1); // the interval
+                double f = u - k; // fraction of the interval
+                if (points != null) {
+                    interpolate(this.points, 3 * k, f, points, 3 * i);
+                }
+                if (tangents != null) {
+                    interpolate(this.tangents, 3 * k, f, tangents, 3 * i);
+                }
+                if (normals != null) {
+                    interpolate(this.normals, 3 * k, f, normals, 3 * i);
+                }
+            }
+        }
+
+        @Override
+        public void getOrientation(double t, double[] out) {
+            curve.getOrientation(t, out);
+        }
+
+        @Override
+        public void tessellate(int samples, double[] points, double[] tangents,
+                double[] normals) {
+            // Tessellate the original curve, which is exact and usually
+            // cheaper per point than a lookup.
+            curve.tessellate(samples, points, tangents, normals);
+        }
+
+        @Override
+        public int[] subdivisions(double tolerance) {
+            return curve.subdivisions(tolerance);
+        }
+
+        @Override
+        public void tessellate(int[] counts, double[] points, double[] tangents,
+                double[] normals) {
+            curve.tessellate(counts, points, tangents, normals);
+        }
+
+        @Override
+        public double length() {
+            return curve.length();
+        }
+
+        @Override
+        public double parameterAt(double s) {
+            return curve.parameterAt(s);
+        }
+
+        @Override
+        public double closestParameter(Vector p) {
+            return curve.closestParameter(p);
+        }
+
+        @Override
+        public void closestParameters(double[] positions, double[] ts) {
+            curve.closestParameters(positions, ts);
+        }
+
+        /**
+         * Interpolates linearly between the two samples around t.
+         *
+         * @param values x, y, z of the value at each sample
+         * @param t the parameter, which is taken modulo 1
+         * @param out array to store the x, y and z of the result in
+         */
+        private void interpolate(double[] values, double t, double[] out) {
+            double u = (t - floor(t)) * samples; // position in intervals
+            int k = min((int) u, samples - 1); // the interval
+            double f = u - k; // fraction of the interval
+            interpolate(values, 3 * k, f, out, 0);
+        }
+
+        /**
+         * Interpolates linearly between the sample at i and the next one.
+         *
+         * @param values x, y, z of the value at each sample
+         * @param i the index of the x coordinate of the first sample
+         * @param f the fraction of the interval
+         * @param out array to store the x, y and z of the result in
+         * @param o the index in out to store the x coordinate at
+         */
+        private static void interpolate(double[] values, int i, double f,
+                double[] out, int o) {
+            out[o] = values[i] + f * (values[i + 3] - values[i]);
+            out[o + 1] = values[i + 1] + f * (values[i + 4] - values[i + 1]);
+            out[o + 2] = values[i + 2] + f * (values[i + 5] - values[i + 2]);
+        }
+    }
+
+    /**
+     * Table of rotation-minimizing frames of a curve at evenly spaced
+     * parameters. Each frame consists of the unit tangent and a unit up
+     * vector perpendicular to it.
+     *
+     * The first up vector is the Z axis made perpendicular to the tangent.
+     * Every next one is obtained with the double reflection method of Wang
+     * et al., "Computation of rotation minimizing frames" (2008): the frame
+     * is reflected in the plane between the two points and then in the plane
+     * between the reflected and the actual tangent. For a closed curve, the
+     * last frame generally ends up rotated around the tangent with respect to
+     * the first one. That angle is spread out evenly over all frames, such
+     * that the frames match where the curve closes.
+     */
+    public static class FrameTable {
+
+        final private int samples; // number of intervals between the samples
+        final private double[] tangents; // unit tangent at each sample
+        final private double[] ups; // unit up vector at each sample
+
+        /**
+         * Computes the frames of a curve.
+         *
+         * @param curve the curve
+         * @param samples number of intervals the range [0,1] is split in
+         */
+        public FrameTable(Curve curve, int samples) {
+            this.samples = samples;
+            double[] points = new double[3 * (samples + 1)];
+            tangents = new double[3 * (samples + 1)];
+            ups = new double[3 * (samples + 1)];
+            double[] sample = new double[3];
+            for (int k = 0; k <= samples; k++) {
+                // Curves wrap around at t = 1, so the last sample is taken
+                // just before it.
+                double t = (k < samples) ? (double) k / samples : 1 - 1e-12;
+                curve.getPoint(t, sample);
+                System.arraycopy(sample, 0, points, 3 * k, 3);
+                curve.getTangent(t, sample);
+                normalize(sample, 0);
+                System.arraycopy(sample, 0, tangents, 3 * k, 3);
+            }
+
+            // Start with the Z axis, made perpendicular to the tangent.
+            ups[2] = 1;
+            if (abs(tangents[2]) > 0.999) {
+                ups[0] = 1; // the tangent is (almost) vertical; use X instead
+                ups[2] = 0;
+            }
+            orthogonalize(ups, 0, tangents, 0);
+
+            // Propagate the frame with double reflections.
+            double[] v = new double[3], r = new double[3], t = new double[3];
+            for (int k = 0; k < samples; k++) {
+                int i = 3 * k, j = 3 * (k + 1);
+                for (int c = 0; c < 3; c++) {
+                    v[c] = points[j + c] - points[i + c];
+                    r[c] = ups[i + c];
+                    t[c] = tangents[i + c];
+                }
+                reflect(r, v);
+                reflect(t, v);
+                for (int c = 0; c < 3; c++) {
+                    v[c] = tangents[j + c] - t[c];
+                }
+                reflect(r, v);
+                System.arraycopy(r, 0, ups, j, 3);
+                orthogonalize(ups, j, tangents, j);
+            }
+
+            // If the curve is closed, remove the twist between the last and
+            // the first frame.
+            int last = 3 * samples;
+            double gap = 0, turn = 0;
+            for (int c = 0; c < 3; c++) {
+                gap += abs(points[last + c] - points[c]);
+                turn += tangents[last + c] * tangents[c];
+            }
+            if (gap < 1e-6 && turn > 0.999) {
+                // Signed angle from the last to the first up vector.
+                double angle = atan2(
+                        dot(cross(ups, last, ups, 0), tangents, 0),
+                        ups[last] * ups[0] + ups[last + 1] * ups[1]
+                        + ups[last + 2] * ups[2]);
+                for (int k = 1; k <= samples; k++) {
+                    rotate(ups, 3 * k, tangents, 3 * k, angle * k / samples);
+                }
+            }
+        }
+
+        /**
+         * Computes the interpolated frame at parameter t as a rotation
+         * matrix, see Curve.getOrientation.
+         *
+         * @param t the parameter, which is taken modulo 1
+         * @param out array of length 16 to store the matrix in
+         */
+        public void getOrientation(double t, double[] out) {
+            double u = (t - floor(t)) * samples; // position in intervals
+            int k = min((int) u, samples - 1); // the interval
+            double f = u - k; // fraction of the interval
+            int i = 3 * k;
+            // Interpolate and make the result orthonormal again. The Y axis
+            // maps to the tangent, the Z axis to the up vector and the X
+            // axis to their cross product.
+            for (int c = 0; c < 3; c++) {
+                out[4 + c] = tangents[i + c] + f * (tangents[i + 3 + c] - tangents[i + c]);
+                out[8 + c] = ups[i + c] + f * (ups[i + 3 + c] - ups[i + c]);
+            }
+            normalize(out, 4);
+            orthogonalize(out, 8, out, 4);
+            out[0] = out[5] * out[10] - out[6] * out[9];
+            out[1] = out[6] * out[8] - out[4] * out[10];
+            out[2] = out[4] * out[9] - out[5] * out[8];
+            out[3] = out[7] = out[11] = out[12] = out[13] = out[14] = 0;
+            out[15] = 1;
+        }
+
+        /**
+         * Reflects a vector in the plane through the origin perpendicular to
+         * the normal n. Nothing happens if n has (almost) length 0.
+         */
+        private static void reflect(double[] a, double[] n) {
+            double nn = n[0] * n[0] + n[1] * n[1] + n[2] * n[2];
+            if (nn > 1e-24) {
+                double scale = 2 * (n[0] * a[0] + n[1] * a[1] + n[2] * a[2]) / nn;
+                for (int c = 0; c < 3; c++) {
+                    a[c] -= scale * n[c];
+                }
+            }
+        }
+
+        /**
+         * Removes the component along the unit vector b[j..j+2] from the
+         * vector a[i..i+2] and scales it to unit length.
+         */
+        private static void orthogonalize(double[] a, int i, double[] b, int j) {
+            double d = a[i] * b[j] + a[i + 1] * b[j + 1] + a[i + 2] * b[j + 2];
+            for (int c = 0; c < 3; c++) {
+                a[i + c] -= d * b[j + c];
+            }
+            normalize(a, i);
+        }
+
+        /**
+         * Scales the vector a[i..i+2] to unit length, unless it is zero.
+         */
+        private static void normalize(double[] a, int i) {
+            double length = sqrt(a[i] * a[i] + a[i + 1] * a[i + 1] + a[i + 2] * a[i + 2]);
+            if (length > 0) {
+                for (int c = 0; c < 3; c++) {
+                    a[i + c] /= length;
+                }
+            }
+        }
+
+        /**
+         * Returns the cross product of a[i..i+2] and b[j..j+2].
+         */
+        private static double[] cross(double[] a, int i, double[] b, int j) {
+            return new double[]{
+                a[i + 1] * b[j + 2] - a[i + 2] * b[j + 1],
+                a[i + 2] * b[j] - a[i] * b[j + 2],
+                a[i] * b[j + 1] - a[i + 1] * b[j]};
+        }
+
+        /**
+         * Returns the dot product of a[0..2] and b[j..j+2].
+         */
+        private static double dot(double[] a, double[] b, int j) {
+            return a[0] * b[j] + a[1] * b[j + 1] + a[2] * b[j + 2];
+        }
+
+        /**
+         * Rotates the vector a[i..i+2], which is perpendicular to the unit
+         * axis b[j..j+2], around that axis by the specified angle.
+         */
+        private static void rotate(double[] a, int i, double[] b, int j,
+                double angle) {
+            double[] c = cross(b, j, a, i); // a rotated by 90 degrees
+            double cos = cos(angle), sin = sin(angle);
+            for (int k = 0; k < 3; k++) {
+                a[i + k] = cos * a[i + k] + sin * c[k];
+            }
+        }
+    }
+
+    /**
+     * Table of the arc length of a curve at evenly spaced parameters, used to
+     * convert between distances along the curve and parameters.
+     *
+     * The length of the curve between two consecutive parameters is computed
+     * with 5-point Gauss-Legendre quadrature of the length of the tangent.
+     * A distance is converted by a binary search for the interval containing
+     * it. Within the interval, the speed is assumed to change linearly, which
+     * gives a quadratic equation for the parameter. Compared to linear
+     * interpolation, this keeps the speed much more even.
+     */
+    public static class ArcLengthTable {
+
+        // Nodes on [0,1] and weights of 5-point Gauss-Legendre quadrature.
+        final static private double[] NODES = {
+            0.04691007703066800, 0.23076534494715845, 0.5,
+            0.76923465505284155, 0.95308992296933200};
+        final static private double[] WEIGHTS = {
+            0.11846344252809454, 0.23931433524968324, 0.28444444444444444,
+            0.23931433524968324, 0.11846344252809454};
+        final private double[] lengths; // arc length at parameter k / intervals
+        final private double[] accelerations; // relative change of speed per interval
+
+        /**
+         * Builds the table for a curve.
+         *
+         * @param curve the curve
+         * @param intervals number of intervals the range [0,1] is split in
+         * @param scale the derivative of the curve to t divided by the tangent
+         * returned by the curve
+         */
+        public ArcLengthTable(Curve curve, int intervals, double scale) {
+            lengths = new double[intervals + 1];
+            accelerations = new double[intervals];
+            double[] speeds = new double[NODES.length]; // speed at each node
+            double[] tangent = new double[3];
+            for (int k = 0; k < intervals; k++) {
+                double length = 0; // length of interval k
+                for (int n = 0; n < NODES.length; n++) {
+                    double t = (k + NODES[n]) / intervals;
+                    curve.getTangent(t, tangent);
+                    speeds[n] = sqrt(tangent[0] * tangent[0]
+                            + tangent[1] * tangent[1] + tangent[2] * tangent[2]);
+                    length += WEIGHTS[n] * speeds[n];
+                }
+                lengths[k + 1] = lengths[k] + scale * length / intervals;
+                // Extrapolate the speed at the outer nodes to the ends of the
+                // interval, relative to the average speed.
+                int last = NODES.length - 1;
+                double slope = (speeds[last] - speeds[0]) / (NODES[last] - NODES[0]);
+                accelerations[k] = (length > 0) ? slope / length : 0;
+            }
+        }
+
+        /**
+         * Returns the length of the whole curve.
+         */
+        public double length() {
+            return lengths[lengths.length - 1];
+        }
+
+        /**
+         * Converts a distance along the curve into a parameter.
+         *
+         * @param s the distance, which is taken modulo the length
+         * @return the parameter in [0,1] at that distance
+         */
+        public double parameterAt(double s) {
+            double length = length();
+            s = s % length;
+            if (s < 0) {
+                s += length;
+            }
+            // Find the interval k with lengths[k] <= s < lengths[k + 1].
+            int low = 0, high = lengths.length - 1;
+            while (high - low > 1) {
+                int middle = (low + high) >>> 1;
+                if (lengths[middle] <= s) {
+                    low = middle;
+                } else {
+                    high = middle;
+                }
+            }
+            double ds = lengths[high] - lengths[low]; // length of the interval
+            double r = (ds > 0) ? (s - lengths[low]) / ds : 0; // fraction of ds
+            // With a relative speed of 1 + a (u - 1/2) at fraction u of the
+            // interval, the fraction of the length is u + a (u^2 - u) / 2 = r.
+            double a = accelerations[low] / 2, b = 1 - a;
+            double discriminant = b * b + 4 * a * r;
+            double u = (discriminant > 0) ? 2 * r / (b + sqrt(discriminant)) : r;
+            return (low + min(max(u, 0), 1)) / (lengths.length - 1);
+        }
+    }
+
+    /**
+     * Simple implementation of Curve specifying an ellipse.
+     */
+    public static class SimpleCurve implements Curve {
+
+        private ArcLengthTable table; // arc length table, built on first use
+        private FrameTable frames; // frame table, built on first use
+
+        @Override
+        public Vector getPoint(double t) {
+            double x, y, z; // x,y,z coordinates as defined in the assignment
+            x = 10 * cos(2 * PI * t);
+            y = 14 * sin(2 * PI * t);
+            z = 1;
+            return new Vector(x, y, z);
+        }
+
+        @Override
+        public Vector getTangent(double t) {
+            double x, y, z; // x,y,z coordinates as defined in the assignment
+            x = -20 * PI * sin(2 * PI * t);
+            y = 28 * PI * cos(2 * PI * t);
+            z = 0;
+            return new Vector(x, y, z);
+        }
+
+        @Override
+        public Vector getNormalVector(double t) {
+            Vector tangent = this.getTangent(t);
+            // Rotate 90 degrees in negative direction (outward) in XOY plane.
+            return new Vector(tangent.y(), -tangent.x(), 0);
+        }
+
+        @Override
+        public void getPoint(double t, double[] out) {
+            out[0] = 10 * cos(2 * PI * t);
+            out[1] = 14 * sin(2 * PI * t);
+            out[2] = 1;
+        }
+
+        @Override
+        public void getTangent(double t, double[] out) {
+            out[0] = -20 * PI * sin(2 * PI * t);
+            out[1] = 28 * PI * cos(2 * PI * t);
+            out[2] = 0;
+        }
+
+        @Override
+        public void getNormalVector(double t, double[] out) {
+            getTangent(t, out);
+            double x = out[0];
+            out[0] = out[1];
+            out[1] = -x;
+        }
+
+        @Override
+        public double length() {
+            return table().length();
+        }
+
+        @Override
+        public double parameterAt(double s) {
+            return table().parameterAt(s);
+        }
+
+        @Override
+        public void getOrientation(double t, double[] out) {
+            if (frames == null) {
+                frames = new FrameTable(this, 256);
+            }
+            frames.getOrientation(t, out);
+        }
+
+        @Override
+        public void tessellate(int samples, double[] points, double[] tangents,
+                double[] normals) {
+            double[] sample = new double[3];
+            for (int k = 0; k <= samples; k++) {
+                double t = (double) k / samples;
+                getPoint(t, sample);
+                System.arraycopy(sample, 0, points, 3 * k, 3);
+                getTangent(t, sample);
+                System.arraycopy(sample, 0, tangents, 3 * k, 3);
+                getNormalVector(t, sample);
+                System.arraycopy(sample, 0, normals, 3 * k, 3);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         *
+         * The line between two samples that lie h apart in t is at most
+         * M h^2 / 8 away from the curve, where M bounds the length of the
+         * second derivative. Here M = (2 pi)^2 * 14, the larger radius.
+         */
+        @Override
+        public int[] subdivisions(double tolerance) {
+            double M = 4 * PI * PI * 14; // bound on the second derivative
+            return new int[]{max(1, (int) ceil(sqrt(M / (8 * tolerance))))};
+        }
+
+        @Override
+        public void tessellate(int[] counts, double[] points, double[] tangents,
+                double[] normals) {
+            tessellate(counts[0], points, tangents, normals);
+        }
+
+        /**
+         * Returns the arc length table, which is built on first use.
+         */
+        private ArcLengthTable table() {
+            if (table == null) {
+                table = new ArcLengthTable(this, 256, 1);
+            }
+            return table;
+        }
+    }
+
+    /**
+     * Implementation of Curve that models a Bezier curve.
+     *
+     * This class will use N control points to model Bezier segments. Each
+     * segment is described by P[i], P[i+1], P[i+2], P[i+3] where i is a
+     * multiple of 3. This means that segments are linked together. The last
+     * control point does not need to be the same as the first control point.
+     *
+     * The available range [0,1] is split up equally between each segment. This
+     * means that each sequence, independent of size, will be drawn with the
+     * same precision. It also means that speed of the curve can vary.
+     *
+     * Points that do not form a full segment will be ignored. For example, if 5
+     * points are specified, the first four will be used to form a segment and
+     * the last will be ignored.
+     *
+     * Each segment is evaluated in power basis, a + b s + c s^2 + d s^3, with
+     * Horner's rule. The coefficients are computed once in the constructor.
+     */
+    public static class BezierCurve implements Curve {
+
+        final private Vector[] P; // control points defining Bezier segments
+        int N; // the number of segments
+        // Coefficients a, b, c, d of each segment, as x, y, z triples.
+        final private double[] C;
+        // Bounding box of each piece of a segment, as minimum x, y, z and
+        // maximum x, y, z, and the first point of each piece.
+        final private double[] boxes, starts;
+        final static private int PIECES = 4; // pieces per segment for boxes
+        final static private int CLOSESTSAMPLES = 4; // samples per piece
+        final static private int SAMPLES = 64; // table samples per segment
+        private ArcLengthTable table; // arc length table, built on first use
+        private FrameTable frames; // frame table, built on first use
+        // Bezier curve resembling the letter O.
+        final static public BezierCurve O = new BezierCurve(
+                new Vector(-10, 0, 1),
+                new Vector(-10, 10, 1),
+                new Vector(10, 10, 1),
+                new Vector(10, 0, 1),
+                new Vector(10, -10, 1),
+                new Vector(-10, -10, 1),
+                new Vector(-10, 0, 1));
+        // Bezier curve resembling the letter D.
+        final static public BezierCurve D = new BezierCurve(
+                new Vector(-7, -10, 1),
+                new Vector(-7, -5, 1),
+                new Vector(-7, 5, 1),
+                new Vector(-7, 10, 1),
+                new Vector(-7, 12, 1),
+                new Vector(-5, 15, 1),
+                new Vector(3, 11, 1),
+                new Vector(9, 7, 1),
+                new Vector(9, -13, 1),
+                new Vector(3, -14, 1),
+                new Vector(-5, -15, 1),
+                new Vector(-7, -12, 1),
+                new Vector(-7, -10, 1));
+        // Bezier curve resembling the letter L.
+        final static public BezierCurve L = new BezierCurve(
+                new Vector(4, -11, 1),
+                new Vector(20 / 3, -11, 1),
+                new Vector(28 / 3, -11, 1),
+                new Vector(12, -11, 1),
+                new Vector(13, -11, 1),
+                new Vector(13, -12, 1),
+                new Vector(12, -12, 1),
+                new Vector(8, -12, 1),
+                new Vector(4, -12, 1),
+                new Vector(-9, -12, 1),
+                new Vector(-13, -12, 1),
+                new Vector(-13, -12, 1),
+                new Vector(-13, 1, 1),
+                new Vector(-13, 5, 1),
+                new Vector(-13, 9, 1),
+                new Vector(-13, 13, 1),
+                new Vector(-13, 14, 1),
+                new Vector(-12, 14, 1),
+                new Vector(-12, 13, 1),
+                new Vector(-12, 10, 1),
+                new Vector(-12, 8, 1),
+                new Vector(-12, 5, 1),
+                new Vector(-12, -11, 1),
+                new Vector(-12, -11, 1),
+                new Vector(4, -11, 1));
+        // Customly defined Bezier curve.
+        final static public BezierCurve custom = new BezierCurve(
+                new Vector(-10, 0, 1),
+                new Vector(-10, 10, 5),
+                new Vector(10, 10, 1),
+                new Vector(10, 0, 5),
+                new Vector(10, -10, 9),
+                new Vector(-10, -10, -3),
+                new Vector(-10, 0, 1));
+
+        /**
+         * Constructs a Bezier curve from the specified control points.
+         *
+         * @param points control points
+         */
+        public BezierCurve(Vector... points) {
+            this.P = points;
+            N = (points.length - 1) / 3;
+            C = new double[12 * N];
+            for (int n = 0; n < N; n++) {
+                Vector P0 = P[3 * n], P1 = P[3 * n + 1], P2 = P[3 * n + 2],
+                        P3 = P[3 * n + 3];
+                double[] p0 = {P0.x(), P0.y(), P0.z()},
+                        p1 = {P1.x(), P1.y(), P1.z()},
+                        p2 = {P2.x(), P2.y(), P2.z()},
+                        p3 = {P3.x(), P3.y(), P3.z()};
+                for (int k = 0; k < 3; k++) {
+                    C[12 * n + k] = p0[k];
+                    C[12 * n + 3 + k] = 3 * (p1[k] - p0[k]);
+                    C[12 * n + 6 + k] = 3 * (p0[k] - 2 * p1[k] + p2[k]);
+                    C[12 * n + 9 + k] = -p0[k] + 3 * (p1[k] - p2[k]) + p3[k];
+                }
+            }
+            // Split every segment in pieces, and bound each piece by the box
+            // around its own control points, since a Bezier curve lies in the
+            // convex hull of its control points.
+            boxes = new double[6 * N * PIECES];
+            starts = new double[3 * N * PIECES];
+            double w = 1.0 / PIECES; // the length of a piece in s
+            for (int p = 0; p < N * PIECES; p++) {
+                int c = 12 * (p / PIECES); // the first coefficient of the segment
+                double s0 = (p % PIECES) * w; // the start of the piece in s
+                for (int k = 0; k < 3; k++) {
+                    double a = C[c + k], b = C[c + 3 + k], q = C[c + 6 + k],
+                            d = C[c + 9 + k];
+                    // Coefficients of the piece as a polynomial in [0, 1].
+                    double a1 = a + s0 * (b + s0 * (q + s0 * d));
+                    double b1 = w * (b + s0 * (2 * q + s0 * 3 * d));
+                    double c1 = w * w * (q + s0 * 3 * d);
+                    double d1 = w * w * w * d;
+                    // Its control points.
+                    double p0 = a1, p1 = a1 + b1 / 3,
+                            p2 = a1 + 2 * b1 / 3 + c1 / 3, p3 = a1 + b1 + c1 + d1;
+                    boxes[6 * p + k] = min(min(p0, p1), min(p2, p3));
+                    boxes[6 * p + 3 + k] = max(max(p0, p1), max(p2, p3));
+                    starts[3 * p + k] = p0;
+                }
+            }
+        }
+
+        @Override
+        public Vector getPoint(double t) {
+            double[] point = new double[3];
+            getPoint(t, point);
+            return new Vector(point[0], point[1], point[2]);
+        }
+
+        @Override
+        public Vector getTangent(double t) {
+            double[] tangent = new double[3];
+            getTangent(t, tangent);
+            return new Vector(tangent[0], tangent[1], tangent[2]);
+        }
+
+        @Override
+        public Vector getNormalVector(double t) {
+            Vector tangent = this.getTangent(t);
+            // Rotate 90 degrees in negative direction (outward) in XOY plane.
+            return new Vector(-tangent.y(), tangent.x(), 0);
+        }
+
+        @Override
+        public void getPoint(double t, double[] out) {
+            /*
+             * Normalize t to the range [0,1) and multiply by the number of
+             * segments. The integer part is the segment in which the point
+             * lies, and the fraction is the value to fill into the Bezier
+             * function of that segment.
+             */
+            double u = (t - floor(t)) * N; // position in segments
+            int n = min((int) u, N - 1); // the segment
+            double s = u - n; // value to fill into the Bezier function
+            int i = 12 * n; // the first coefficient of the segment
+            for (int k = 0; k < 3; k++) {
+                out[k] = C[i + k] + s * (C[i + 3 + k] + s * (C[i + 6 + k]
+                        + s * C[i + 9 + k]));
+            }
+        }
+
+        @Override
+        public void getTangent(double t, double[] out) {
+            double u = (t - floor(t)) * N; // position in segments
+            int n = min((int) u, N - 1); // the segment
+            double s = u - n; // value to fill into the Bezier function
+            int i = 12 * n; // the first coefficient of the segment
+            for (int k = 0; k < 3; k++) {
+                out[k] = C[i + 3 + k] + s * (2 * C[i + 6 + k]
+                        + s * 3 * C[i + 9 + k]);
+            }
+        }
+
+        @Override
+        public void getNormalVector(double t, double[] out) {
+            getTangent(t, out);
+            // Rotate 90 degrees in negative direction (outward) in XOY plane.
+            double x = out[0];
+            out[0] = -out[1];
+            out[1] = x;
+            out[2] = 0;
+        }
+
+        /**
+         * {@inheritDoc}
+         *
+         * The parameters are bucketed by segment first, with a counting sort.
+         * Each bucket is then evaluated in one loop with the coefficients of
+         * its segment held in local variables.
+         */
+        @Override
+        public void evaluate(double[] ts, double[] points, double[] tangents,
+                double[] normals) {
+            int[] segments = new int[ts.length]; // the segment of each parameter
+            double[] ss = new double[ts.length]; // the value within the segment
+            int[] start = new int[N + 1]; // the first index of each bucket
+            for (int i = 0; i < ts.length; i++) {
+                double u = (ts[i] - floor(ts[i])) * N; // position in segments
+                int n = min((int) u, N - 1);
+                segments[i] = n;
+                ss[i] = u - n;
+                start[n + 1]++;
+            }
+            for (int n = 0; n < N; n++) {
+                start[n + 1] += start[n];
+            }
+            int[] order = new int[ts.length]; // parameters ordered by segment
+            int[] next = Arrays.copyOf(start, N); // next free index of buckets
+            for (int i = 0; i < ts.length; i++) {
+                order[next[segments[i]]++] = i;
+            }
+            for (int n = 0; n < N; n++) {
+                if (start[n] == start[n + 1]) {
+                    continue; // empty bucket
+                }
+                int c = 12 * n; // the first coefficient of the segment
+                double ax = C[c], ay = C[c + 1], az = C[c + 2],
+                        bx = C[c + 3], by = C[c + 4], bz = C[c + 5],
+                        qx = C[c + 6], qy = C[c + 7], qz = C[c + 8],
+                        dx = C[c + 9], dy = C[c + 10], dz = C[c + 11];
+                for (int j = start[n]; j < start[n + 1]; j++) {
+                    int i = order[j];
+                    int o = 3 * i;
+                    double s = ss[i];
+                    if (points != null) {
+                        points[o] = ax + s * (bx + s * (qx + s * dx));
+                        points[o + 1] = ay + s * (by + s * (qy + s * dy));
+                        points[o + 2] = az + s * (bz + s * (qz + s * dz));
+                    }
+                    double tx = bx + s * (2 * qx + s * 3 * dx),
+                            ty = by + s * (2 * qy + s * 3 * dy),
+                            tz = bz + s * (2 * qz + s * 3 * dz);
+                    if (tangents != null) {
+                        tangents[o] = tx;
+                        tangents[o + 1] = ty;
+                        tangents[o + 2] = tz;
+                    }
+                    if (normals != null) {
+                        // Rotate 90 degrees in negative direction (outward) in
+                        // XOY plane.
+                        normals[o] = -ty;
+                        normals[o + 1] = tx;
+                        normals[o + 2] = 0;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void getOrientation(double t, double[] out) {
+            if (frames == null) {
+                frames = new FrameTable(this, N * SAMPLES);
+            }
+            frames.getOrientation(t, out);
+        }
+
+        /**
+         * {@inheritDoc}
+         *
+         * The samples within a segment lie at a constant distance h in the
+         * parameter s of the segment, so each segment is computed by forward
+         * differencing.
+         */
+        @Override
+        public void tessellate(int samples, double[] points, double[] tangents,
+                double[] normals) {
+            double h = (double) N / samples; // step size in s
+            int k = 0; // the current sample
+            for (int n = 0; n < N; n++) {
+                // Sample k lies in segment n as long as k * N / samples < n + 1.
+                int end = (int) (((long) (n + 1) * samples + N - 1) / N);
+                if (k >= end) {
+                    continue; // no samples in this segment
+                }
+                double s = (double) k * N / samples - n; // first s in segment
+                forward(n, s, h, k, end, points, tangents);
+                k = end;
+            }
+            finish(samples, points, tangents, normals);
+        }
+
+        /**
+         * {@inheritDoc}
+         *
+         * Every segment is a piece. Wang's formula bounds the number of
+         * intervals a cubic segment needs: the second derivative is at most
+         * 6 M long, where M is the length of the longest second difference
+         * P[i] - 2 P[i+1] + P[i+2] of its control points, so intervals of
+         * h = 1 / n in s stay within 6 M h^2 / 8 of the segment.
+         */
+        @Override
+        public int[] subdivisions(double tolerance) {
+            int[] counts = new int[N];
+            for (int n = 0; n < N; n++) {
+                double M = max(P[3 * n].subtract(P[3 * n + 1].scale(2))
+                        .add(P[3 * n + 2]).length(),
+                        P[3 * n + 1].subtract(P[3 * n + 2].scale(2))
+                        .add(P[3 * n + 3]).length());
+                counts[n] = max(1, (int) ceil(sqrt(3 * M / (4 * tolerance))));
+            }
+            return counts;
+        }
+
+        @Override
+        public void tessellate(int[] counts, double[] points, double[] tangents,
+                double[] normals) {
+            int k = 0; // the current sample
+            for (int n = 0; n < N; n++) {
+                forward(n, 0, 1.0 / counts[n], k, k + counts[n], points, tangents);
+                k += counts[n];
+            }
+            finish(k, points, tangents, normals);
+        }
+
+        /**
+         * Computes the points and tangents of segment n at s, s + h, s + 2h,
+         * and so on, by forward differencing. For a cubic polynomial, the
+         * third difference with step h is constant, so after computing the
+         * value and its first three differences at the first sample, every
+         * next sample only takes three additions per coordinate. The tangent
+         * is a quadratic and takes two.
+         *
+         * @param n the segment
+         * @param s the parameter of the segment at the first sample
+         * @param h the step size in s
+         * @param from the index of the first sample
+         * @param to the index after the last sample
+         * @param points array to store the points in
+         * @param tangents array to store the tangents in
+         */
+        private void forward(int n, double s, double h, int from, int to,
+                double[] points, double[] tangents) {
+            int i = 12 * n; // the first coefficient of the segment
+            for (int c = 0; c < 3; c++) {
+                double a0 = C[i + c], b = C[i + 3 + c], q = C[i + 6 + c],
+                        d = C[i + 9 + c];
+                // The point and its forward differences at s.
+                double p = a0 + s * (b + s * (q + s * d));
+                double dp = h * (b + q * (2 * s + h)
+                        + d * (3 * s * s + 3 * s * h + h * h));
+                double ddp = h * h * (2 * q + d * (6 * s + 6 * h));
+                double dddp = 6 * d * h * h * h;
+                // The tangent and its forward differences at s.
+                double g = b + s * (2 * q + s * 3 * d);
+                double dg = h * (2 * q + 3 * d * (2 * s + h));
+                double ddg = 6 * d * h * h;
+                for (int j = from; j < to; j++) {
+                    points[3 * j + c] = p;
+                    tangents[3 * j + c] = g;
+                    p += dp;
+                    dp += ddp;
+                    ddp += dddp;
+                    g += dg;
+                    dg += ddg;
+                }
+            }
+        }
+
+        /**
+         * Completes a tessellation of the given number of intervals, by
+         * wrapping the last sample around to the first one, like getPoint
+         * does for t = 1, and computing the normals from the tangents.
+         */
+        private void finish(int samples, double[] points, double[] tangents,
+                double[] normals) {
+            System.arraycopy(points, 0, points, 3 * samples, 3);
+            System.arraycopy(tangents, 0, tangents, 3 * samples, 3);
+            for (int j = 0; j <= samples; j++) {
+                // Rotate 90 degrees in negative direction (outward) in XOY plane.
+                normals[3 * j] = -tangents[3 * j + 1];
+                normals[3 * j + 1] = tangents[3 * j];
+                normals[3 * j + 2] = 0;
+            }
+        }
+
+        @Override
+        public double length() {
+            return table().length();
+        }
+
+        @Override
+        public double parameterAt(double s) {
+            return table().parameterAt(s);
+        }
+
+        @Override
+        public double closestParameter(Vector p) {
+            return closest(p.x(), p.y(), p.z());
+        }
+
+        @Override
+        public void closestParameters(double[] positions, double[] ts) {
+            for (int i = 0; i < ts.length; i++) {
+                ts[i] = closest(positions[3 * i], positions[3 * i + 1],
+                        positions[3 * i + 2]);
+            }
+        }
+
+        /**
+         * Finds the parameter of the point closest to (x, y, z).
+         *
+         * Every segment is split in PIECES pieces with a bounding box each.
+         * The distance to the nearest start of a piece is an upper bound for
+         * the answer, and the distance to the box of a piece is a lower bound
+         * for the distance to any of its points, so pieces whose box is
+         * further away than the closest point found so far are skipped.
+         * Within the other pieces, the closest of a few evenly spaced samples
+         * is refined with Newton's method on the derivative of the squared
+         * distance.
+         *
+         * @param x x coordinate of the position
+         * @param y y coordinate of the position
+         * @param z z coordinate of the position
+         * @return the parameter t in the range 0 to 1 of the closest point
+         */
+        private double closest(double x, double y, double z) {
+            final int M = N * PIECES; // the number of pieces
+            double min = Double.POSITIVE_INFINITY; // closest squared distance
+            double best; // parameter of the closest point, in segments
+            int first = 0; // the piece starting closest to the position
+            for (int p = 0; p < M; p++) {
+                double dx = starts[3 * p] - x, dy = starts[3 * p + 1] - y,
+                        dz = starts[3 * p + 2] - z;
+                double d = dx * dx + dy * dy + dz * dz;
+                if (d < min) {
+                    min = d;
+                    first = p;
+                }
+            }
+            best = (double) first / PIECES;
+            // The closest point most likely lies in one of the two pieces
+            // around the closest start. Search those first, so that the
+            // bound is tight for all other pieces.
+            int second = (first + M - 1) % M;
+            for (int i = 0; i < M + 2; i++) {
+                int p = (i == 0) ? first : (i == 1) ? second : i - 2;
+                if (i >= 2 && (p == first || p == second)) {
+                    continue; // already searched
+                }
+                // Squared distance to the bounding box.
+                int b = 6 * p;
+                double dx = (x < boxes[b]) ? boxes[b] - x
+                        : (x > boxes[b + 3]) ? x - boxes[b + 3] : 0;
+                double dy = (y < boxes[b + 1]) ? boxes[b + 1] - y
+                        : (y > boxes[b + 4]) ? y - boxes[b + 4] : 0;
+                double dz = (z < boxes[b + 2]) ? boxes[b + 2] - z
+                        : (z > boxes[b + 5]) ? z - boxes[b + 5] : 0;
+                if (dx * dx + dy * dy + dz * dz >= min) {
+                    continue; // no point of this piece can be closer
+                }
+                int n = p / PIECES; // the segment
+                int c = 12 * n; // the first coefficient of the segment
+                double ax = C[c] - x, ay = C[c + 1] - y, az = C[c + 2] - z,
+                        bx = C[c + 3], by = C[c + 4], bz = C[c + 5],
+                        qx = C[c + 6], qy = C[c + 7], qz = C[c + 8],
+                        ex = C[c + 9], ey = C[c + 10], ez = C[c + 11];
+                double s0 = (double) (p % PIECES) / PIECES; // start of piece
+                // Find the closest sample.
+                double s = 0, d = Double.POSITIVE_INFINITY;
+                for (int k = 0; k <= CLOSESTSAMPLES; k++) {
+                    double u = s0 + (double) k / (CLOSESTSAMPLES * PIECES);
+                    double px = ax + u * (bx + u * (qx + u * ex)),
+                            py = ay + u * (by + u * (qy + u * ey)),
+                            pz = az + u * (bz + u * (qz + u * ez));
+                    double e = px * px + py * py + pz * pz;
+                    if (e < d) {
+                        d = e;
+                        s = u;
+                    }
+                }
+                // Refine it with Newton's method on f(s) = (B(s) - p) . B'(s),
+                // keeping the closest point of all iterations.
+                double u = s;
+                for (int j = 0; j < 6; j++) {
+                    double px = ax + u * (bx + u * (qx + u * ex)),
+                            py = ay + u * (by + u * (qy + u * ey)),
+                            pz = az + u * (bz + u * (qz + u * ez));
+                    double tx = bx + u * (2 * qx + u * 3 * ex),
+                            ty = by + u * (2 * qy + u * 3 * ey),
+                            tz = bz + u * (2 * qz + u * 3 * ez);
+                    double f = px * tx + py * ty + pz * tz;
+                    double df = tx * tx + ty * ty + tz * tz
+                            + px * (2 * qx + 6 * u * ex)
+                            + py * (2 * qy + 6 * u * ey)
+                            + pz * (2 * qz + 6 * u * ez);
+                    if (df <= 0) {
+                        break; // not near a minimum
+                    }
+                    double next = min(1, max(0, u - f / df));
+                    if (abs(next - u) < 1e-12) {
+                        break; // converged
+                    }
+                    u = next;
+                    px = ax + u * (bx + u * (qx + u * ex));
+                    py = ay + u * (by + u * (qy + u * ey));
+                    pz = az + u * (bz + u * (qz + u * ez));
+                    double e = px * px + py * py + pz * pz;
+                    if (e < d) {
+                        d = e;
+                        s = u;
+                    }
+                }
+                if (d < min) {
+                    min = d;
+                    best = n + s;
+                }
+            }
+            double t = best / N;
+            return t < 1 ? t : 0;
+        }
+
+        /**
+         * Returns the arc length table, which is built on first use. Every
+         * segment gets the same number of intervals, such that the intervals
+         * never cross the border between two segments. The tangent is the
+         * derivative to the parameter of a segment, which runs N times as
+         * fast as t.
+         */
+        private ArcLengthTable table() {
+            if (table == null) {
+                table = new ArcLengthTable(this, N * SAMPLES, N);
+            }
+            return table;
+        }
+
+        /**
+         * Measures the allocation and the time per call of getPoint and
+         * getTangent on every track, once with the caller-supplied arrays and
+         * once with the Vector versions, and prints the number of bytes
+         * allocated and the nanoseconds per pair of calls. The versions with
+         * arrays should allocate nothing.
+         *
+         * Allocation is counted with the ThreadMXBean of the JVM, which must
+         * support com.sun.management.ThreadMXBean.
+         *
+         * Then times a tessellation of every track by forward differencing
+         * against one that evaluates every sample, and prints the time per
+         * tessellation and the largest difference between the two.
+         *
+         * @param args the number of parameters per track (default 1000000),
+         * the number of samples per tessellation (default 100) and the number
+         * of tessellations (default 100000)
+         */
+        public static void main(String[] args) {
+            int calls = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+            int samples = (args.length > 1) ? Integer.parseInt(args[1]) : 100;
+            int runs = (args.length > 2) ? Integer.parseInt(args[2]) : 100000;
+            com.sun.management.ThreadMXBean bean
+                    = (com.sun.management.ThreadMXBean) java.lang.management
+                    .ManagementFactory.getThreadMXBean();
+            long thread = Thread.currentThread().getId();
+            BezierCurve[] curves = {O, D, L, custom};
+            String[] names = {"O", "D", "L", "custom"};
+            double[] point = new double[3];
+            double[] tangent = new double[3];
+            for (int c = 0; c < curves.length; c++) {
+                BezierCurve curve = curves[c];
+                double sum = 0; // keeps the results alive
+                for (int round = 0; round < 3; round++) { // last round counts
+                    long bytes = bean.getThreadAllocatedBytes(thread);
+                    long start = System.nanoTime();
+                    for (int i = 0; i < calls; i++) {
+                        double t = (double) i / calls;
+                        curve.getPoint(t, point);
+                        curve.getTangent(t, tangent);
+                        sum += point[0] + tangent[1];
+                    }
+                    long arrays = System.nanoTime() - start;
+                    long arrayBytes = bean.getThreadAllocatedBytes(thread) - bytes;
+                    bytes = bean.getThreadAllocatedBytes(thread);
+                    start = System.nanoTime();
+                    for (int i = 0; i < calls; i++) {
+                        double t = (double) i / calls;
+                        sum += curve.getPoint(t).x() + curve.getTangent(t).y();
+                    }
+                    long vectors = System.nanoTime() - start;
+                    long vectorBytes = bean.getThreadAllocatedBytes(thread) - bytes;
+                    if (round == 2) {
+                        System.out.printf("%s: arrays %.2f B %.1f ns,"
+                                + " vectors %.2f B %.1f ns (%.3g)%n", names[c],
+                                (double) arrayBytes / calls,
+                                (double) arrays / calls,
+                                (double) vectorBytes / calls,
+                                (double) vectors / calls, sum);
+                    }
+                }
+            }
+            double[] points = new double[3 * (samples + 1)];
+            double[] tangents = new double[3 * (samples + 1)];
+            double[] normals = new double[3 * (samples + 1)];
+            double[] expected = new double[3 * (samples + 1)];
+            for (int c = 0; c < curves.length; c++) {
+                BezierCurve curve = curves[c];
+                for (int round = 0; round < 3; round++) { // last round counts
+                    long start = System.nanoTime();
+                    for (int r = 0; r < runs; r++) {
+                        for (int k = 0; k <= samples; k++) {
+                            double t = (double) k / samples;
+                            curve.getPoint(t, point);
+                            System.arraycopy(point, 0, expected, 3 * k, 3);
+                            curve.getTangent(t, tangent);
+                            System.arraycopy(tangent, 0, tangents, 3 * k, 3);
+                            curve.getNormalVector(t, tangent);
+                            System.arraycopy(tangent, 0, normals, 3 * k, 3);
+                        }
+                    }
+                    long evaluated = System.nanoTime() - start;
+                    start = System.nanoTime();
+                    for (int r = 0; r < runs; r++) {
+                        curve.tessellate(samples, points, tangents, normals);
+                    }
+                    long forward = System.nanoTime() - start;
+                    if (round == 2) {
+                        double error = 0;
+                        for (int i = 0; i < points.length; i++) {
+                            error = max(error, abs(points[i] - expected[i]));
+                        }
+                        System.out.printf("%s: %d samples, evaluated %.2f us,"
+                                + " forward %.2f us, difference %.2g%n",
+                                names[c], samples, evaluated / 1e3 / runs,
+                                forward / 1e3 / runs, error);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Class representing a matrix.
+     */
+    public static class Matrix {
+
+        double[][] numbers; // stores the numbers in the matrix
+
+        /**
+         * Construct a matrix.
+         *
+         * @param numbers numbers in the matrix
+         */
+        public Matrix(double[][] numbers) {
+            this.numbers = numbers;
+        }
+
+        /**
+         * Returns the result of the matrix-vector multiplication of
+         * {@code this} and {@code v}.
+         *
+         * @param v the vector
+         * @return the result of the multiplication
+         */
+        public Vector times(Vector v) {
+            Vector h1 = new Vector(numbers[0][0], numbers[0][1], numbers[0][2]);
+            double x = v.dot(h1); // dot product of first row and vector v
+
+            Vector h2 = new Vector(numbers[1][0], numbers[1][1], numbers[1][2]);
+            double y = v.dot(h2); // dot product of second row and vector v
+
+            Vector h3 = new Vector(numbers[2][0], numbers[2][1], numbers[2][2]);
+            double z = v.dot(h3); // dot product of third row and vector v
+
+            return new Vector(x, y, z);
+        }
+
+        /**
+         * Calculates the transposed matrix, that is, a matrix with the indices
+         * reversed.
+         *
+         * @return the transposed matrix
+         */
+        public Matrix transposed() {
+            double[][] result = new double[numbers.length][numbers.length];
+
+            for (int i = 0; i < numbers.length; i++) {
+                for (int j = 0; j < numbers.length; j++) {
+                    result[j][i] = numbers[i][j];
+                }
+            }
+            return new Matrix(result);
+        }
+    }
+
+    /**
+     * Calculates a transformation matrix that rotates over an angle {@code phi}
+     * around the Z axis and then over an angle {@code theta} around the y axis.
+     *
+     * @param phi phi angle mentioned above
+     * @param theta theta angle mentioned above
+     * @return the transformation matrix
+     */
+    public static Matrix eyeToWorldMatrix(float phi, float theta) {
+        double[][] worldToEyeMatrix = {
+            {cos(phi) * cos(theta), -sin(phi), -cos(phi) * sin(theta)},
+            {sin(phi) * cos(theta), cos(phi), -sin(phi) * sin(theta)},
+            {sin(theta), 0, cos(theta)}
+        };
+        return new Matrix(worldToEyeMatrix);
+    }
+
+    /**
+     * Represents the view frustum of a camera as six planes.
+     *
+     * The planes are extracted from the product of the projection and
+     * modelview matrices, such that they are expressed in world coordinates.
+     * Each plane (a, b, c, d) is normalized and oriented such that points
+     * inside the frustum satisfy a*x + b*y + c*z + d >= 0.
+     */
+    public static class Frustum {
+
+        final private double[][] planes = new double[6][4]; // the six planes
+        final private double[] eye = new double[3]; // position of the camera
+
+        /**
+         * Updates the frustum to the specified matrices.
+         *
+         * @param projection projection matrix in column-major order
+         * @param modelview modelview matrix in column-major order
+         */
+        public void update(float[] projection, float[] modelview) {
+            // Compute the clip matrix (projection * modelview).
+            double[] clip = new double[16];
+            for (int col = 0; col < 4; col++) {
+                for (int row = 0; row < 4; row++) {
+                    double sum = 0;
+                    for (int k = 0; k < 4; k++) {
+                        sum += projection[k * 4 + row] * modelview[col * 4 + k];
+                    }
+                    clip[col * 4 + row] = sum;
+                }
+            }
+
+            // Every plane is the sum or difference of the fourth row and one
+            // of the other rows: left, right, bottom, top, near and far.
+            for (int p = 0; p < 6; p++) {
+                int row = p / 2; // row that is added or subtracted
+                double sign = (p % 2 == 0) ? 1 : -1;
+                double length = 0;
+                for (int k = 0; k < 4; k++) {
+                    planes[p][k] = clip[k * 4 + 3] + sign * clip[k * 4 + row];
+                    if (k < 3) {
+                        length += planes[p][k] * planes[p][k];
+                    }
+                }
+                length = sqrt(length);
+                for (int k = 0; k < 4; k++) {
+                    planes[p][k] /= length;
+                }
+            }
+
+            // The camera is the origin of eye coordinates. Since the upper
+            // left part of the modelview matrix is a rotation, its inverse is
+            // the transposed.
+            for (int k = 0; k < 3; k++) {
+                eye[k] = -(modelview[k * 4] * modelview[12]
+                        + modelview[k * 4 + 1] * modelview[13]
+                        + modelview[k * 4 + 2] * modelview[14]);
+            }
+        }
+
+        /**
+         * Determines whether an axis-aligned box is (partly) inside of the
+         * frustum. For each plane, only the corner of the box that lies
+         * furthest in the direction of its normal is tested. This may report
+         * boxes near the corners of the frustum as visible while they are not.
+         *
+         * @param low minimum corner of the box
+         * @param high maximum corner of the box
+         * @return false if the box is completely outside of the frustum
+         */
+        public boolean intersects(double[] low, double[] high) {
+            for (double[] plane : planes) {
+                double distance = plane[3];
+                for (int k = 0; k < 3; k++) {
+                    distance += plane[k] * ((plane[k] >= 0) ? high[k] : low[k]);
+                }
+                if (distance < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Computes the distance between the camera and an axis-aligned box.
+         *
+         * @param low minimum corner of the box
+         * @param high maximum corner of the box
+         * @return the distance, which is 0 if the camera is inside of the box
+         */
+        public double distance(double[] low, double[] high) {
+            double sum = 0;
+            for (int k = 0; k < 3; k++) {
+                double d = max(low[k] - eye[k], max(0, eye[k] - high[k]));
+                sum += d * d;
+            }
+            return sqrt(sum);
+        }
+    }
+
+    /**
+     * Represents the terrain.
+     */
+    public class Terrain {
+
+        private Set<Bump> bumps; // The bumps which influence the height.
+        private BumpGrid index; // spatial index over the bumps
+        private BumpRows packed; // packed bumps to compute rows of heights
+        HeightField field; // heights and normals for each vertex
+        boolean parallel = true; // compute rows in parallel if true
+        private double[] rowMin; // lowest z coordinate per row
+        private double[] rowMax; // highest z coordinate per row
+        private Tile[] tiles; // tiles the terrain is split up in
+        private FloatBuffer vertices; // interleaved vertex data, see STRIDE
+        private int vertexBuffer = 0; // id of the vertex buffer object
+        int triangles = 0; // number of triangles drawn since last reset
+        int submitted = 0; // number of vertices submitted since last reset
+        final static private float MIN = -20; // minimum value for the x and y coordinates.
+        final static private float MAX = 20; // maximum value for the x and y coordinates.
+        final private int M; // number of lines in x direction
+        final private int N; // number of lines in y direction
+        final private GridStrips strips; // triangle strips of the tiles
+        // Distance from the camera up to which the highest level is used. Each
+        // next level is used up to twice the distance of the previous one.
+        final static private float LOD_DISTANCE = 8;
+        // Number of floats per vertex in the vertex buffer: the position, the
+        // normal and the texture coordinate.
+        final static private int STRIDE = 7;
+        // Change of the lowest or highest height, relative to the range of
+        // the heights, below which an edit does not rescale the terrain. The
+        // range is rebuilt from normalized floats, which are not exact.
+        final static private double RANGE_TOLERANCE = 1e-6;
+
+        /**
+         * Constructs a terrain with the given parameters.
+         *
+         * @param size The number of vertices in x and in y direction.
+         * @param bumps The bumps which are contained in the terrain.
+         */
+        public Terrain(int size, Bump... bumps) {
+            this.M = size;
+            this.N = size;
+            this.strips = new GridStrips(N);
+            this.bumps = new HashSet(Arrays.asList(bumps));
+            this.index = new BumpGrid(MIN, MAX, bumps);
+            this.packed = new BumpRows(index, this.bumps);
+        }
+
+        /**
+         * Calculates the z coordinate for a point in the XOY plane.
+         *
+         * Only the bumps whose support overlaps the cell of the spatial index
+         * containing the point are visited; all other bumps contribute 0.
+         *
+         * @param x The x coordinate of the point.
+         * @param y The y coordinate of the point.
+         * @return The z coordinate of the point.
+         */
+        public double z(double x, double y) {
+            float sum = 0;
+            Bump[] candidates = index.candidates(x, y);
+            if (candidates == null) {
+                // The point lies outside of the index; visit all bumps.
+                for (Bump b : bumps) {
+                    sum += b.summand(x, y);
+                }
+            } else {
+                for (Bump b : candidates) {
+                    sum += b.summand(x, y);
+                }
+            }
+            return sum;
+        }
+
+        /**
+         * Returns the height of the rendered terrain in point (x, y).
+         *
+         * Unlike z(x, y), which sums the bumps and does not normalize, this
+         * interpolates the precomputed grid in constant time. It does not
+         * allocate and may be called from any thread once the terrain has
+         * been precalculated. During an edit of the bumps, it may return a
+         * mix of the old and the new heights.
+         *
+         * @param x The x coordinate of the point.
+         * @param y The y coordinate of the point.
+         * @return The height of the point, in [-1,1].
+         */
+        public float heightAt(double x, double y) {
+            return field.heightAt(x, y);
+        }
+
+        /**
+         * Computes the unit normal of the rendered terrain in point (x, y),
+         * in the same way as heightAt(x, y).
+         *
+         * @param x The x coordinate of the point.
+         * @param y The y coordinate of the point.
+         * @param normal Array of length 3 to store the normal in.
+         */
+        public void normalAt(double x, double y, float[] normal) {
+            field.normalAt(x, y, normal);
+        }
+
+        /**
+         * Precalculates the vertices of the terrain and splits the terrain up
+         * into tiles.
+         *
+         * Since the terrain only depends on the bumps and the size of the
+         * grid, the result is stored in a cache file. If a valid cache file
+         * exists, the heights and normals are read from it instead.
+         */
+        private void precalculate() {
+            long key = key(); // identifies this terrain in the cache
+            File file = new File(System.getProperty("java.io.tmpdir"),
+                    "robotrace-terrain-" + Long.toHexString(key) + ".bin");
+            HeightField cached = HeightFieldCache.load(file, key, M, N, MIN, MAX);
+            if (cached != null) {
+                field = cached;
+            } else {
+                field = new HeightField(M, N, MIN, MAX);
+                calculate();
+                HeightFieldCache.save(file, key, field);
+            }
+            createTiles();
+        }
+
+        /**
+         * Computes a hash of the bumps and the dimensions of the grid. The
+         * hash does not depend on the order of the bumps.
+         *
+         * @return the hash
+         */
+        private long key() {
+            long hash = 0;
+            for (Bump b : bumps) {
+                long h = HeightFieldCache.mix(Double.doubleToLongBits(b.center_x));
+                h = HeightFieldCache.mix(h ^ Double.doubleToLongBits(b.center_y));
+                h = HeightFieldCache.mix(h ^ Double.doubleToLongBits(b.height));
+                h = HeightFieldCache.mix(h ^ Double.doubleToLongBits(b.radius));
+                hash += h; // addition is independent of the order
+            }
+            hash = HeightFieldCache.mix(hash ^ M);
+            hash = HeightFieldCache.mix(hash ^ N);
+            hash = HeightFieldCache.mix(hash ^ Float.floatToIntBits(MIN));
+            return HeightFieldCache.mix(hash ^ Float.floatToIntBits(MAX));
+        }
+
+        /**
+         * Computes the heights and normals of the terrain. If
+         * {@code parallel} is true, every pass is split up into rows that are
+         * processed by a fork-join pool. The result does not depend on this:
+         * each value is computed by exactly the same operations in both cases.
+         */
+        private void calculate() {
+            // Computes the heights.
+            forRows(0, M, new RowAction() {
+                @Override
+                public void rows(int from, int to) {
+                    double[] row = new double[N]; // heights of the row
+                    double[] ys = new double[N]; // y coordinates of the row
+                    for (int i = from; i < to; i++) {
+                        packed.row(field.x(i), field.y(0), field.dy(), ys, row);
+                        for (int j = 0; j < N; j++) {
+                            field.setHeight(i, j, row[j]);
+                        }
+                    }
+                }
+            });
+
+            normalize(); // map all z coordinates to interval [-1,1]
+
+            calculateNormals(0, M - 1, 0, N - 1);
+        }
+
+        /**
+         * Computes the normals of the vertices (i0, j0) up to and including
+         * (i1, j1) from the current heights.
+         */
+        private void calculateNormals(int i0, int i1, final int j0,
+                final int j1) {
+            forRows(i0, i1 + 1, new RowAction() {
+                @Override
+                public void rows(int from, int to) {
+                    double[] normal = new double[3]; // sum of the normals
+                    for (int i = from; i < to; i++) {
+                        for (int j = j0; j <= j1; j++) {
+                            field.calculateNormal(i, j, normal);
+                            field.setNormal(i, j, normal);
+                        }
+                    }
+                }
+            });
+        }
+
+        /**
+         * Adds a bump to the terrain. Only the heights and normals of the
+         * vertices around the bump are recomputed. This needs to be called on
+         * the OpenGL thread.
+         *
+         * @param bump the bump to add
+         */
+        public void addBump(Bump bump) {
+            if (bumps.add(bump)) {
+                index.add(bump);
+                packed.add(bump);
+                update(bump);
+            }
+        }
+
+        /**
+         * Removes a bump from the terrain. Only the heights and normals of the
+         * vertices around the bump are recomputed. This needs to be called on
+         * the OpenGL thread.
+         *
+         * @param bump the bump to remove
+         */
+        public void removeBump(Bump bump) {
+            if (bumps.remove(bump)) {
+                index.remove(bump);
+                packed.remove(bump);
+                update(bump);
+            }
+        }
+
+        /**
+         * Replaces a bump by another one, for example the same bump at a
+         * different position. This needs to be called on the OpenGL thread.
+         *
+         * @param bump the bump to remove
+         * @param moved the bump to add
+         */
+        public void moveBump(Bump bump, Bump moved) {
+            removeBump(bump);
+            addBump(moved);
+        }
+
+        /**
+         * Recomputes the terrain after a bump has been added or removed.
+         *
+         * The heights are only recomputed for the vertices within the radius
+         * of the bump, and the normals for those vertices and the vertices
+         * next to them. As long as the lowest and highest heights of the
+         * terrain do not change by more than RANGE_TOLERANCE, the other
+         * vertices keep their normalized height. Otherwise, all heights are rescaled to the new range and all
+         * normals are recomputed, but the heights are still not recomputed
+         * from the bumps.
+         *
+         * @param bump the bump that has been added or removed
+         */
+        private void update(Bump bump) {
+            if (field == null) {
+                return; // the terrain has not been computed yet
+            }
+            float l = MAX - MIN; // the length of the terrain
+            final int i0 = max(0, (int) floor((bump.center_x - bump.radius - MIN) / (l / M)));
+            final int i1 = min(M - 1, (int) ceil((bump.center_x + bump.radius - MIN) / (l / M)));
+            final int j0 = max(0, (int) floor((bump.center_y - bump.radius - MIN) / (l / N)));
+            final int j1 = min(N - 1, (int) ceil((bump.center_y + bump.radius - MIN) / (l / N)));
+            if (i0 > i1 || j0 > j1) {
+                return; // the bump lies outside of the terrain
+            }
+
+            if (rowMin == null) {
+                // The heights were loaded from the cache; compute the range of
+                // each row from the normalized heights.
+                rowMin = new double[M];
+                rowMax = new double[M];
+                updateRows(0, M - 1, 0, -1, null);
+            }
+
+            // Compute the new heights and the new range of the affected rows.
+            final double[] heights = new double[(i1 - i0 + 1) * (j1 - j0 + 1)];
+            forRows(i0, i1 + 1, new RowAction() {
+                @Override
+                public void rows(int from, int to) {
+                    // Compute whole rows, to sample exactly the same points
+                    // as calculate().
+                    double[] row = new double[N]; // heights of the row
+                    double[] ys = new double[N]; // y coordinates of the row
+                    for (int i = from; i < to; i++) {
+                        packed.row(field.x(i), field.y(0), field.dy(), ys, row);
+                        System.arraycopy(row, j0, heights,
+                                (i - i0) * (j1 - j0 + 1), j1 - j0 + 1);
+                    }
+                }
+            });
+            updateRows(i0, i1, j0, j1, heights);
+
+            double zmin = Double.MAX_VALUE, // lowest z coordinate in points
+                    zmax = -Double.MAX_VALUE; // highest z coordinate in points
+            for (int i = 0; i < M; i++) {
+                zmin = min(zmin, rowMin[i]);
+                zmax = max(zmax, rowMax[i]);
+            }
+
+            double tolerance = RANGE_TOLERANCE * (field.high - field.low);
+            if (abs(zmin - field.low) <= tolerance
+                    && abs(zmax - field.high) <= tolerance) {
+                // Only the vertices around the bump change.
+                for (int i = i0; i <= i1; i++) {
+                    for (int j = j0; j <= j1; j++) {
+                        field.setHeight(i, j, normalize(
+                                heights[(i - i0) * (j1 - j0 + 1) + j - j0]));
+                    }
+                }
+                int ni0 = max(0, i0 - 1), ni1 = min(M - 1, i1 + 1),
+                        nj0 = max(0, j0 - 1), nj1 = min(N - 1, j1 + 1);
+                calculateNormals(ni0, ni1, nj0, nj1);
+                updateVertices(ni0, ni1);
+                for (Tile tile : tiles) {
+                    if (tile.i0 <= ni1 && ni0 <= tile.i1
+                            && tile.j0 <= nj1 && nj0 <= tile.j1) {
+                        tile.updateBounds();
+                    }
+                }
+            } else {
+                // Rescale all heights to the new range.
+                final double low = field.low, high = field.high;
+                field.low = zmin;
+                field.high = zmax;
+                forRows(0, M, new RowAction() {
+                    @Override
+                    public void rows(int from, int to) {
+                        for (int i = from; i < to; i++) {
+                            for (int j = 0; j < N; j++) {
+                                double z;
+                                if (i0 <= i && i <= i1 && j0 <= j && j <= j1) {
+                                    z = heights[(i - i0) * (j1 - j0 + 1) + j - j0];
+                                } else {
+                                    z = low + (field.height(i, j) + 1) / 2 * (high - low);
+                                }
+                                field.setHeight(i, j, normalize(z));
+                            }
+                        }
+                    }
+                });
+                calculateNormals(0, M - 1, 0, N - 1);
+                updateVertices(0, M - 1);
+                for (Tile tile : tiles) {
+                    tile.updateBounds();
+                }
+            }
+        }
+
+        /**
+         * Recomputes the range of the heights before normalization for the
+         * rows i0 up to and including i1. Inside the columns j0 up to and
+         * including j1, the specified new heights are used. Outside of them,
+         * the heights are derived from the normalized heights.
+         *
+         * @param i0 the first row
+         * @param i1 the last row
+         * @param j0 the first column with a new height
+         * @param j1 the last column with a new height
+         * @param heights the new heights, row by row
+         */
+        private void updateRows(int i0, int i1, int j0, int j1,
+                double[] heights) {
+            for (int i = i0; i <= i1; i++) {
+                rowMin[i] = Double.MAX_VALUE;
+                rowMax[i] = -Double.MAX_VALUE;
+                for (int j = 0; j < N; j++) {
+                    double z;
+                    if (j0 <= j && j <= j1) {
+                        z = heights[(i - i0) * (j1 - j0 + 1) + j - j0];
+                    } else {
+                        z = field.low + (field.height(i, j) + 1) / 2
+                                * (field.high - field.low);
+                    }
+                    rowMin[i] = min(rowMin[i], z);
+                    rowMax[i] = max(rowMax[i], z);
+                }
+            }
+        }
+
+        /**
+         * Splits the terrain up into square tiles of TILE squares. If the
+         * number of squares is not a multiple of TILE, the last tile in that
+         * direction is made larger.
+         */
+        private void createTiles() {
+            // Tile boundaries.
+            int[] is = GridStrips.splits(M - 1), js = GridStrips.splits(N - 1);
+            int tilesX = is.length - 1, tilesY = js.length - 1;
+            tiles = new Tile[tilesX * tilesY];
+            for (int a = 0; a < tilesX; a++) {
+                for (int b = 0; b < tilesY; b++) {
+                    tiles[a * tilesY + b] = new Tile(is[a], is[a + 1],
+                            js[b], js[b + 1]);
+                }
+            }
+            // Link the tiles to their neighbours.
+            for (int a = 0; a < tilesX; a++) {
+                for (int b = 0; b < tilesY; b++) {
+                    Tile tile = tiles[a * tilesY + b];
+                    tile.neighbours[GridStrips.SOUTH] = (b > 0) ? tiles[a * tilesY + b - 1] : null;
+                    tile.neighbours[GridStrips.NORTH] = (b < tilesY - 1) ? tiles[a * tilesY + b + 1] : null;
+                    tile.neighbours[GridStrips.WEST] = (a > 0) ? tiles[(a - 1) * tilesY + b] : null;
+                    tile.neighbours[GridStrips.EAST] = (a < tilesX - 1) ? tiles[(a + 1) * tilesY + b] : null;
+                }
+            }
+        }
+
+        /**
+         * Draws the visible tiles of the terrain and the water surface.
+         *
+         * The level of detail of each tile is chosen based on its distance to
+         * the camera. Tiles that lie outside of the view frustum are skipped.
+         */
+        public void draw() {
+            if (vertexBuffer == 0) {
+                uploadVertices();
+            }
+
+            // Choose a level of detail for every tile first, since the level of
+            // a tile determines how the edges of its neighbours are drawn.
+            for (Tile tile : tiles) {
+                int lod = 0;
+                double d = frustum.distance(tile.min, tile.max);
+                while (lod < tile.lods - 1 && d >= LOD_DISTANCE * (1 << lod)) {
+                    lod++;
+                }
+                tile.lod = lod;
+            }
+
+            setMaterial(Material.WHITE);
+            // Set the texture.
+            landscape.enable(gl);
+            landscape.bind(gl);
+            // Take the vertices from the vertex buffer.
+            gl.glBindBuffer(GL_ARRAY_BUFFER, vertexBuffer);
+            gl.glEnableClientState(GL_VERTEX_ARRAY);
+            gl.glEnableClientState(GL_NORMAL_ARRAY);
+            gl.glEnableClientState(GL_TEXTURE_COORD_ARRAY);
+            gl.glVertexPointer(3, GL_FLOAT, STRIDE * Buffers.SIZEOF_FLOAT, 0);
+            gl.glNormalPointer(GL_FLOAT, STRIDE * Buffers.SIZEOF_FLOAT,
+                    3 * Buffers.SIZEOF_FLOAT);
+            gl.glTexCoordPointer(1, GL_FLOAT, STRIDE * Buffers.SIZEOF_FLOAT,
+                    6 * Buffers.SIZEOF_FLOAT);
+            for (Tile tile : tiles) {
+                if (frustum.intersects(tile.min, tile.max)) {
+                    tile.draw();
+                }
+            }
+            gl.glDisableClientState(GL_TEXTURE_COORD_ARRAY);
+            gl.glDisableClientState(GL_NORMAL_ARRAY);
+            gl.glDisableClientState(GL_VERTEX_ARRAY);
+            gl.glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, 0);
+            gl.glBindBuffer(GL_ARRAY_BUFFER, 0);
+            landscape.disable(gl);
+
+            drawWater(); // draw transparent water layer
+        }
+
+        /**
+         * Creates the vertex buffer object and uploads all vertices to it.
+         *
+         * Each vertex takes STRIDE floats: x, y, z, the normal and the texture
+         * coordinate. Vertex (i, j) is stored at the same index as in the
+         * height field, so the rows of the grid are contiguous.
+         */
+        private void uploadVertices() {
+            vertices = Buffers.newDirectFloatBuffer(STRIDE * M * N);
+            fillVertices(0, M - 1);
+            int[] ids = new int[1];
+            gl.glGenBuffers(1, ids, 0);
+            vertexBuffer = ids[0];
+            gl.glBindBuffer(GL_ARRAY_BUFFER, vertexBuffer);
+            gl.glBufferData(GL_ARRAY_BUFFER,
+                    vertices.capacity() * Buffers.SIZEOF_FLOAT, vertices,
+                    GL_STATIC_DRAW);
+            gl.glBindBuffer(GL_ARRAY_BUFFER, 0);
+        }
+
+        /**
+         * Copies the rows i0 up to and including i1 from the height field to
+         * the vertex buffer, if it has been created already.
+         */
+        private void updateVertices(int i0, int i1) {
+            if (vertexBuffer == 0) {
+                return; // all vertices are uploaded before the first frame
+            }
+            fillVertices(i0, i1);
+            int offset = STRIDE * i0 * N; // first float of row i0
+            vertices.position(offset);
+            gl.glBindBuffer(GL_ARRAY_BUFFER, vertexBuffer);
+            gl.glBufferSubData(GL_ARRAY_BUFFER, offset * Buffers.SIZEOF_FLOAT,
+                    STRIDE * (i1 - i0 + 1) * N * Buffers.SIZEOF_FLOAT, vertices);
+            gl.glBindBuffer(GL_ARRAY_BUFFER, 0);
+            vertices.rewind();
+        }
+
+        /**
+         * Writes the interleaved data of the rows i0 up to and including i1
+         * to the vertices buffer.
+         */
+        private void fillVertices(int i0, int i1) {
+            int k = STRIDE * i0 * N;
+            for (int i = i0; i <= i1; i++) {
+                for (int j = 0; j < N; j++) {
+                    float z = field.height(i, j);
+                    vertices.put(k++, field.x(i));
+                    vertices.put(k++, field.y(j));
+                    vertices.put(k++, z);
+                    vertices.put(k++, field.normalX(i, j));
+                    vertices.put(k++, field.normalY(i, j));
+                    vertices.put(k++, field.normalZ(i, j));
+                    vertices.put(k++, (float) textureCoord(z));
+                }
+            }
+        }
+
+        /**
+         * Draws a gray transparent polygon to simulate a water surface.
+         */
+        private void drawWater() {
+            setMaterial(Material.WATER_SURFACE);
+            gl.glBegin(GL_QUADS);
+            gl.glVertex3d(-20, -20, -0.01);
+            gl.glVertex3d(-20, 20, -0.01);
+            gl.glVertex3d(20, 20, -0.01);
+            gl.glVertex3d(20, -20, -0.01);
+            gl.glEnd();
+        }
+
+        /**
+         * Maps the texture coordinate for the z coordinate the interval [-1, 1]
+         * to the interval [0, 1].
+         */
+        private double textureCoord(double z) {
+            return (z + 1) / 2;
+        }
+
+        /**
+         * Enforces all z coordinates of the points to lie in [-1,1].
+         */
+        private void normalize() {
+            rowMin = new double[M];
+            rowMax = new double[M];
+            // Determine zmin, zmax for each row.
+            forRows(0, M, new RowAction() {
+                @Override
+                public void rows(int from, int to) {
+                    for (int i = from; i < to; i++) {
+                        rowMin[i] = Double.MAX_VALUE;
+                        rowMax[i] = -Double.MAX_VALUE;
+                        for (int j = 0; j < N; j++) {
+                            float z = field.height(i, j);
+                            if (z < rowMin[i]) {
+                                rowMin[i] = z;
+                            }
+                            if (z > rowMax[i]) {
+                                rowMax[i] = z;
+                            }
+                        }
+                    }
+                }
+            });
+
+            double zmin = Double.MAX_VALUE, // lowest z coordinate in points
+                    zmax = -Double.MAX_VALUE; // highest z coordinate in points
+            // Determine zmin, zmax from the rows.
+            for (int i = 0; i < M; i++) {
+                zmin = min(zmin, rowMin[i]);
+                zmax = max(zmax, rowMax[i]);
+            }
+
+            field.low = zmin;
+            field.high = zmax;
+            forRows(0, M, new RowAction() {
+                @Override
+                public void rows(int from, int to) {
+                    for (int i = from; i < to; i++) {
+                        for (int j = 0; j < N; j++) {
+                            field.setHeight(i, j, normalize(field.height(i, j)));
+                        }
+                    }
+                }
+            });
+        }
+
+        /**
+         * Maps a z coordinate from the range of the heights to [-1,1].
+         */
+        private double normalize(double z) {
+            z = (z - field.low) / (field.high - field.low); // normalize to [0,1]
+            return 2 * z - 1; // map to [-1,1]
+        }
+
+        /**
+         * Represents a rectangular part of the terrain that is drawn with its
+         * own level of detail.
+         *
+         * At level l, only every 2^l-th vertex of the tile is used. To prevent
+         * cracks between tiles of different levels, the triangles along the
+         * edges of a tile are drawn separately: the outermost vertices of an
+         * edge are taken from the coarser of the two levels of the tiles on
+         * both sides of the edge. Since the vertices of a coarse level are a
+         * subset of those of a finer level, both tiles then use exactly the
+         * same vertices along the edge.
+         */
+        private class Tile {
+
+            final int i0, i1; // first and last vertex in x direction
+            final int j0, j1; // first and last vertex in y direction
+            final int lods; // number of levels available for this tile
+            final double[] min = new double[3]; // minimum corner of the tile
+            final double[] max = new double[3]; // maximum corner of the tile
+            final Tile[] neighbours = new Tile[4]; // neighbours for each side
+            int lod; // level of detail used in the current frame
+            // Index buffers per level and levels of the edges, see key().
+            final Map<Integer, int[]> buffers = new HashMap<Integer, int[]>();
+
+            /**
+             * Constructs the tile spanning vertices (i0, j0) to (i1, j1).
+             */
+            Tile(int i0, int i1, int j0, int j1) {
+                this.i0 = i0;
+                this.i1 = i1;
+                this.j0 = j0;
+                this.j1 = j1;
+                this.lods = GridStrips.levels(i0, i1, j0, j1);
+                updateBounds();
+            }
+
+            /**
+             * Computes the bounding box of the tile from the heights.
+             */
+            void updateBounds() {
+                min[0] = field.x(i0);
+                min[1] = field.y(j0);
+                max[0] = field.x(i1);
+                max[1] = field.y(j1);
+                min[2] = Double.MAX_VALUE;
+                max[2] = -Double.MAX_VALUE;
+                for (int i = i0; i <= i1; i++) {
+                    for (int j = j0; j <= j1; j++) {
+                        min[2] = min(min[2], field.height(i, j));
+                        max[2] = max(max[2], field.height(i, j));
+                    }
+                }
+            }
+
+            /**
+             * Draws the triangle strip for the current level of detail from
+             * the vertex buffer of the terrain, which must be bound. The index
+             * buffer for the level is created first if it was not used before.
+             */
+            void draw() {
+                int[] steps = new int[4]; // step size at each side
+                for (int side = 0; side < 4; side++) {
+                    Tile other = neighbours[side];
+                    steps[side] = 1 << ((other == null) ? lod : max(lod, other.lod));
+                }
+                int key = key(steps);
+                // Index buffer id, number of indices and number of triangles.
+                int[] buffer = buffers.get(key);
+                if (buffer == null) {
+                    buffer = compile(steps);
+                    buffers.put(key, buffer);
+                }
+                gl.glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, buffer[0]);
+                gl.glDrawElements(GL_TRIANGLE_STRIP, buffer[1], GL_UNSIGNED_INT, 0);
+                submitted += buffer[1];
+                triangles += buffer[2];
+            }
+
+            /**
+             * Computes a unique key for the current level and the specified
+             * step sizes at the sides.
+             */
+            int key(int[] steps) {
+                int key = lod;
+                for (int step : steps) {
+                    key = key * GridStrips.LODS + Integer.numberOfTrailingZeros(step);
+                }
+                return key;
+            }
+
+            /**
+             * Creates an index buffer with the triangle strip of this tile.
+             * The indices refer to the vertex buffer of the terrain, so the
+             * buffer stays valid when the heights change.
+             *
+             * @param steps step size at each side
+             * @return the index buffer id, the number of indices and the
+             * number of (non-degenerate) triangles in it
+             */
+            int[] compile(int[] steps) {
+                StripBuilder strip = strips.triangulate(i0, i1, j0, j1, lod, steps);
+                IntBuffer data = Buffers.newDirectIntBuffer(strip.size());
+                data.put(strip.toArray());
+                data.rewind();
+                int[] ids = new int[1];
+                gl.glGenBuffers(1, ids, 0);
+                gl.glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, ids[0]);
+                gl.glBufferData(GL_ELEMENT_ARRAY_BUFFER,
+                        strip.size() * Buffers.SIZEOF_INT, data,
+                        GL_STATIC_DRAW);
+                return new int[]{ids[0], strip.size(), strip.triangles()};
+            }
+
+        }
+
+        /**
+         * Performs the action for the rows [from, to). The rows are split up
+         * among the threads of a fork-join pool if {@code parallel} is true.
+         *
+         * @param from the first row
+         * @param to the row after the last row
+         * @param action the action to perform
+         */
+        private void forRows(int from, int to, RowAction action) {
+            if (parallel) {
+                RowTask.POOL.invoke(new RowTask(action, from, to));
+            } else {
+                action.rows(from, to);
+            }
+        }
+    }
+
+    /**
+     * Triangulates the tiles of a terrain as triangle strips, see
+     * Terrain.Tile. Vertex (i, j) of the grid has index i * lines + j, like in a
+     * HeightField, so the strips only depend on the size of the grid and can
+     * be computed without a GL context.
+     */
+    public static class GridStrips {
+
+        final static public int TILE = 32; // number of squares along a tile
+        final static public int LODS = 4; // number of levels of detail
+        // Indices of the sides of a tile.
+        final static public int SOUTH = 0, NORTH = 1, WEST = 2, EAST = 3;
+        final private int lines; // number of lines in y direction
+
+        /**
+         * Constructs the triangulation of a grid.
+         *
+         * @param lines the number of lines in y direction
+         */
+        public GridStrips(int lines) {
+            this.lines = lines;
+        }
+
+        /**
+         * Computes the boundaries of the tiles along a line of squares.
+         *
+         * @param squares the number of squares
+         * @return the vertex indices at which tiles start and end
+         */
+        public static int[] splits(int squares) {
+            int count = max(1, squares / TILE); // number of tiles
+            int[] result = new int[count + 1];
+            for (int k = 0; k < count; k++) {
+                result[k] = k * TILE;
+            }
+            result[count] = squares;
+            return result;
+        }
+
+        /**
+         * Computes the number of levels of detail available for the tile
+         * spanning vertices (i0, j0) to (i1, j1). Every level should have at
+         * least two squares in each direction, such that there are inner
+         * vertices.
+         */
+        public static int levels(int i0, int i1, int j0, int j1) {
+            int l = 1;
+            while (l < LODS && (i1 - i0) >> l >= 2 && (j1 - j0) >> l >= 2) {
+                l++;
+            }
+            return l;
+        }
+
+        /**
+         * Computes the triangles of the tile spanning vertices (i0, j0) to
+         * (i1, j1) at the specified level as a single triangle strip.
+         *
+         * @param i0 the first vertex in x direction
+         * @param i1 the last vertex in x direction
+         * @param j0 the first vertex in y direction
+         * @param j1 the last vertex in y direction
+         * @param lod the level of detail of the tile
+         * @param steps step size at each side
+         * @return the strip of vertex indices in the grid
+         */
+        public StripBuilder triangulate(int i0, int i1, int j0, int j1,
+                int lod, int[] steps) {
+            StripBuilder result = new StripBuilder();
+            int[] is = vertices(i0, i1, 1 << lod);
+            int[] js = vertices(j0, j1, 1 << lod);
+            int a = is.length - 1, b = js.length - 1; // squares
+
+            // Triangulate the inner squares like the squares of the full
+            // terrain: in a bottom left and an upper right triangle. Each
+            // column of squares is one strip.
+            int[] column = new int[2 * (b - 1)];
+            for (int p = 1; p < a - 1 && b > 2; p++) {
+                for (int q = 1; q < b; q++) {
+                    column[2 * (q - 1)] = is[p] * lines + js[q];
+                    column[2 * (q - 1) + 1] = is[p + 1] * lines + js[q];
+                }
+                addStrip(result, column, column.length);
+            }
+
+            // Connect the edges to the inner vertices.
+            int[] inner = Arrays.copyOfRange(is, 1, a); // inner x values
+            int[] outer = vertices(i0, i1, steps[SOUTH]);
+            zip(result, outer, j0, inner, js[1], false);
+            outer = vertices(i0, i1, steps[NORTH]);
+            zip(result, outer, j1, inner, js[b - 1], false);
+            inner = Arrays.copyOfRange(js, 1, b); // inner y values
+            outer = vertices(j0, j1, steps[WEST]);
+            zip(result, outer, i0, inner, is[1], true);
+            outer = vertices(j0, j1, steps[EAST]);
+            zip(result, outer, i1, inner, is[a - 1], true);
+            return result;
+        }
+
+        /**
+         * Triangulates the area between an edge of the tile and the
+         * parallel line through the inner vertices closest to it. Both
+         * lines are walked at the same time, each time adding a triangle
+         * with the next vertex on the line that lies closest.
+         *
+         * The triangles form a strip as long as the walk alternates
+         * between the lines. When it advances twice on the same line, the
+         * current vertex of the other line is repeated, which adds a
+         * degenerate triangle.
+         *
+         * @param result strip to add the triangles to
+         * @param outer coordinates of the vertices along the edge
+         * @param outerLine coordinate of the edge itself
+         * @param inner coordinates of the vertices along the inner line
+         * @param innerLine coordinate of the inner line itself
+         * @param vertical if true, the lines run in y direction, otherwise
+         * they run in x direction
+         */
+        private void zip(StripBuilder result, int[] outer, int outerLine,
+                int[] inner, int innerLine, boolean vertical) {
+            int[] strip = new int[2 * (outer.length + inner.length)];
+            int n = 0; // number of vertices in the strip
+            strip[n++] = index(vertical, outer[0], outerLine);
+            strip[n++] = index(vertical, inner[0], innerLine);
+            boolean last = false; // whether the last vertex is on the outer line
+            int p = 0, q = 0; // current vertex on outer and inner line
+            while (p < outer.length - 1 || q < inner.length - 1) {
+                if (q == inner.length - 1 || (p < outer.length - 1
+                        && outer[p + 1] <= inner[q + 1])) {
+                    // Advance on the outer line.
+                    if (last) {
+                        strip[n++] = index(vertical, inner[q], innerLine);
+                    }
+                    strip[n++] = index(vertical, outer[++p], outerLine);
+                    last = true;
+                } else {
+                    // Advance on the inner line.
+                    if (!last) {
+                        strip[n++] = index(vertical, outer[p], outerLine);
+                    }
+                    strip[n++] = index(vertical, inner[++q], innerLine);
+                    last = false;
+                }
+            }
+            addStrip(result, strip, n);
+        }
+
+        /**
+         * Returns the index of a vertex given in coordinates along and
+         * across a line.
+         */
+        private int index(boolean vertical, int a, int b) {
+            return vertical ? b * lines + a : a * lines + b;
+        }
+
+        /**
+         * Appends a strip to the result. The strip is started at an odd
+         * position if its first triangle with a nonzero area would be
+         * drawn clockwise, such that all its triangles end up
+         * counterclockwise when seen from above.
+         *
+         * @param result strip to add the triangles to
+         * @param strip vertex indices of the strip
+         * @param n number of vertices in the strip
+         */
+        private void addStrip(StripBuilder result, int[] strip, int n) {
+            int cross = 0; // orientation of the first proper triangle
+            int t = 0; // position of the triangle after it
+            for (; cross == 0 && t + 2 < n; t++) {
+                int i1 = strip[t] / lines, j1 = strip[t] % lines;
+                int i2 = strip[t + 1] / lines, j2 = strip[t + 1] % lines;
+                int i3 = strip[t + 2] / lines, j3 = strip[t + 2] % lines;
+                cross = (i2 - i1) * (j3 - j1) - (j2 - j1) * (i3 - i1);
+            }
+            // That triangle is reversed if it lies at an odd position.
+            boolean clockwise = (cross < 0) == (t % 2 == 1);
+            result.begin(strip[0], clockwise);
+            for (int k = 1; k < n; k++) {
+                result.add(strip[k]);
+            }
+        }
+        /**
+         * Computes the vertices from {@code from} to {@code to} with the
+         * specified step size. The last vertex is always included, even if
+         * the distance to the previous one is smaller than the step size.
+         */
+        private static int[] vertices(int from, int to, int step) {
+            int[] result = new int[(to - from + step - 1) / step + 1];
+            for (int k = 0; k < result.length - 1; k++) {
+                result[k] = from + k * step;
+            }
+            result[result.length - 1] = to;
+            return result;
+        }
+
+        /**
+         * Counts the vertices submitted to draw a whole terrain, with
+         * separate triangles and with triangle strips. For each size and
+         * each level of detail used for all tiles, it prints the number of
+         * triangles, the number of indices for GL_TRIANGLES, the number for
+         * GL_TRIANGLE_STRIP and the time to triangulate all tiles.
+         *
+         * @param args the numbers of vertices along a side (default 200
+         * 1024 4096)
+         */
+        public static void main(String[] args) {
+            int[] sizes = {200, 1024, 4096};
+            if (args.length > 0) {
+                sizes = new int[args.length];
+                for (int k = 0; k < args.length; k++) {
+                    sizes[k] = Integer.parseInt(args[k]);
+                }
+            }
+            for (int size : sizes) {
+                GridStrips strips = new GridStrips(size);
+                int[] is = splits(size - 1), js = splits(size - 1);
+                for (int lod = 0; lod < LODS; lod++) {
+                    long triangles = 0, strip = 0; // totals of all tiles
+                    long start = System.nanoTime();
+                    for (int a = 0; a < is.length - 1; a++) {
+                        for (int b = 0; b < js.length - 1; b++) {
+                            // All tiles use the same level, or their highest
+                            // level if it is lower, and so do their sides.
+                            int l = min(lod, levels(is[a], is[a + 1],
+                                    js[b], js[b + 1]) - 1);
+                            int[] steps = {1 << l, 1 << l, 1 << l, 1 << l};
+                            StripBuilder result = strips.triangulate(is[a],
+                                    is[a + 1], js[b], js[b + 1], l, steps);
+                            triangles += result.triangles();
+                            strip += result.size();
+                        }
+                    }
+                    long end = System.nanoTime();
+                    System.out.printf("%4d x %-4d level %d: %9d triangles,"
+                            + " GL_TRIANGLES %9d, GL_TRIANGLE_STRIP %9d"
+                            + " (%.2fx fewer), %7.1f ms%n", size, size, lod,
+                            triangles, 3 * triangles, strip,
+                            3.0 * triangles / strip, (end - start) / 1e6);
+                }
+            }
+        }
+    }
+
+    /**
+     * Joins triangle strips into a single strip that can be drawn with one
+     * call of GL_TRIANGLE_STRIP.
+     *
+     * In a strip, the k-th triangle consists of vertices k, k+1 and k+2, and
+     * every odd triangle is drawn in reversed order. Two strips are joined by
+     * repeating the last vertex of the first strip and the first vertex of
+     * the second one, which only adds triangles with zero area. The first
+     * vertex is repeated once more if needed to start the second strip at a
+     * position with the requested parity.
+     */
+    public static class StripBuilder {
+
+        private int[] indices = new int[64]; // the vertices of the strip
+        private int size = 0; // number of vertices in the strip
 
         /**
-         * Returns the normal of a given parameter with the curve.
+         * Starts a new strip with the specified vertex.
          *
-         * @param t A parameter in the range 0 to 1.
-         * @return A vector representing the normal between t and the curve.
+         * @param first the first vertex of the new strip
+         * @param odd whether the strip should start at an odd position, which
+         * reverses the order of all its triangles
          */
-        public Vector getNormalVector(double t);
+        public void begin(int first, boolean odd) {
+            if (size > 0) {
+                add(indices[size - 1]);
+                add(first);
+            }
+            if (size % 2 != (odd ? 1 : 0)) {
+                add(first);
+            }
+            add(first);
+        }
+
+        /**
+         * Adds a vertex to the current strip.
+         */
+        public void add(int index) {
+            if (size == indices.length) {
+                indices = Arrays.copyOf(indices, 2 * size);
+            }
+            indices[size++] = index;
+        }
+
+        /**
+         * Returns the number of vertices in the strip.
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Counts the triangles in the strip that are not degenerate.
+         */
+        public int triangles() {
+            int count = 0;
+            for (int k = 0; k + 2 < size; k++) {
+                int a = indices[k], b = indices[k + 1], c = indices[k + 2];
+                if (a != b && b != c && a != c) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Returns a copy of the vertices of the strip.
+         */
+        public int[] toArray() {
+            return Arrays.copyOf(indices, size);
+        }
     }
 
     /**
-     * Simple implementation of Curve specifying an ellipse.
+     * Regular grid of M x N vertices over the square [min,max] x [min,max]
+     * that stores a height and a normal for each vertex.
+     *
+     * The values are kept in direct float buffers instead of objects: vertex
+     * (i, j) is stored at index i * N + j of the heights and at index
+     * 3 * (i * N + j) of the normals. The x and y coordinates are not stored,
+     * since they follow from i and j. This takes 16 bytes per vertex.
      */
-    public static class SimpleCurve implements Curve {
+    public static class HeightField {
+
+        final public int M; // number of lines in x direction
+        final public int N; // number of lines in y direction
+        final private float min; // minimum value for the x and y coordinates
+        final private float w; // distance between two lines in x direction
+        final private float h; // distance between two lines in y direction
+        final FloatBuffer heights; // height for each vertex
+        final FloatBuffer normals; // normal for each vertex (not normalized)
+        double low; // lowest height before normalization to [-1,1]
+        double high; // highest height before normalization to [-1,1]
 
-        @Override
-        public Vector getPoint(double t) {
-            double x, y, z; // x,y,z coordinates as defined in the assignment
-            x = 10 * cos(2 * PI * t);
-            y = 14 * sin(2 * PI * t);
-            z = 1;
-            return new Vector(x, y, z);
+        /**
+         * Constructs a height field with all heights and normals set to 0.
+         *
+         * @param M number of lines in x direction
+         * @param N number of lines in y direction
+         * @param min minimum value for the x and y coordinates
+         * @param max maximum value for the x and y coordinates
+         */
+        public HeightField(int M, int N, float min, float max) {
+            this(M, N, min, max, Buffers.newDirectFloatBuffer(M * N),
+                    Buffers.newDirectFloatBuffer(3 * M * N));
         }
 
-        @Override
-        public Vector getTangent(double t) {
-            double x, y, z; // x,y,z coordinates as defined in the assignment
-            x = -20 * PI * sin(2 * PI * t);
-            y = 28 * PI * cos(2 * PI * t);
-            z = 0;
-            return new Vector(x, y, z);
+        /**
+         * Constructs a height field that uses the specified buffers.
+         *
+         * @param M number of lines in x direction
+         * @param N number of lines in y direction
+         * @param min minimum value for the x and y coordinates
+         * @param max maximum value for the x and y coordinates
+         * @param heights buffer with M * N heights
+         * @param normals buffer with 3 * M * N normal components
+         */
+        public HeightField(int M, int N, float min, float max,
+                FloatBuffer heights, FloatBuffer normals) {
+            this.M = M;
+            this.N = N;
+            this.min = min;
+            this.w = (max - min) / (float) M;
+            this.h = (max - min) / (float) N;
+            this.heights = heights;
+            this.normals = normals;
         }
 
-        @Override
-        public Vector getNormalVector(double t) {
-            Vector tangent = this.getTangent(t);
-            // Rotate 90 degrees in negative direction (outward) in XOY plane.
-            return new Vector(tangent.y(), -tangent.x(), 0);
+        /**
+         * Computes the x coordinate of the vertices (i, *).
+         */
+        public float x(int i) {
+            return min + i * w;
+        }
+
+        /**
+         * Computes the y coordinate of the vertices (*, j).
+         */
+        public float y(int j) {
+            return min + j * h;
+        }
+
+        /**
+         * Returns the distance between two lines in y direction.
+         */
+        public float dy() {
+            return h;
+        }
+
+        /**
+         * Maps the vertex (i, j) to its index in the heights buffer.
+         */
+        public int index(int i, int j) {
+            return i * N + j;
+        }
+
+        /**
+         * Returns the height of vertex (i, j).
+         */
+        public float height(int i, int j) {
+            return heights.get(index(i, j));
+        }
+
+        /**
+         * Sets the height of vertex (i, j).
+         */
+        public void setHeight(int i, int j, double z) {
+            heights.put(index(i, j), (float) z);
+        }
+
+        /**
+         * Returns the x component of the normal of vertex (i, j).
+         */
+        public float normalX(int i, int j) {
+            return normals.get(3 * index(i, j));
+        }
+
+        /**
+         * Returns the y component of the normal of vertex (i, j).
+         */
+        public float normalY(int i, int j) {
+            return normals.get(3 * index(i, j) + 1);
+        }
+
+        /**
+         * Returns the z component of the normal of vertex (i, j).
+         */
+        public float normalZ(int i, int j) {
+            return normals.get(3 * index(i, j) + 2);
+        }
+
+        /**
+         * Sets the normal of vertex (i, j).
+         */
+        public void setNormal(int i, int j, double[] normal) {
+            int k = 3 * index(i, j);
+            normals.put(k, (float) normal[0]);
+            normals.put(k + 1, (float) normal[1]);
+            normals.put(k + 2, (float) normal[2]);
+        }
+
+        /**
+         * Interpolates the height in point (x, y) bilinearly between the four
+         * surrounding vertices. Points outside of the grid are clamped to its
+         * border.
+         *
+         * @param x the x coordinate of the point
+         * @param y the y coordinate of the point
+         * @return the interpolated height
+         */
+        public float heightAt(double x, double y) {
+            double u = clamp((x - min) / w, M), v = clamp((y - min) / h, N);
+            int i = min((int) u, M - 2), j = min((int) v, N - 2);
+            float s = (float) (u - i), t = (float) (v - j);
+            int k = index(i, j); // index of the bottom left vertex
+            return (1 - s) * ((1 - t) * heights.get(k) + t * heights.get(k + 1))
+                    + s * ((1 - t) * heights.get(k + N) + t * heights.get(k + N + 1));
+        }
+
+        /**
+         * Interpolates the normal in point (x, y) bilinearly between the four
+         * surrounding vertices and scales it to unit length. Points outside
+         * of the grid are clamped to its border.
+         *
+         * @param x the x coordinate of the point
+         * @param y the y coordinate of the point
+         * @param normal array to store the normal in
+         */
+        public void normalAt(double x, double y, float[] normal) {
+            double u = clamp((x - min) / w, M), v = clamp((y - min) / h, N);
+            int i = min((int) u, M - 2), j = min((int) v, N - 2);
+            float s = (float) (u - i), t = (float) (v - j);
+            int k = 3 * index(i, j); // index of the bottom left vertex
+            float length = 0;
+            for (int c = 0; c < 3; c++) {
+                normal[c] = (1 - s) * ((1 - t) * normals.get(k + c)
+                        + t * normals.get(k + 3 + c))
+                        + s * ((1 - t) * normals.get(k + 3 * N + c)
+                        + t * normals.get(k + 3 * N + 3 + c));
+                length += normal[c] * normal[c];
+            }
+            length = (float) sqrt(length);
+            for (int c = 0; c < 3; c++) {
+                normal[c] /= length;
+            }
+        }
+
+        /**
+         * Clamps a position in units of the distance between two lines to
+         * the interval [0, lines - 1].
+         */
+        private static double clamp(double u, int lines) {
+            return (u < 0) ? 0 : (u > lines - 1) ? lines - 1 : u;
+        }
+
+        /**
+         * Calculates the normal of vertex (i, j) from the current heights.
+         *
+         * Each square of four vertices is split up in a bottom left and an
+         * upper right triangle. The normal of a vertex is the sum of the
+         * normals of the triangles it is part of. For the square of which it
+         * is the bottom left or upper right vertex, this is the first and
+         * second normal respectively. For the other squares, it is both.
+         *
+         * @param i the index of the vertex in x direction
+         * @param j the index of the vertex in y direction
+         * @param normal array to store the (not normalized) normal in
+         */
+        public void calculateNormal(int i, int j, double[] normal) {
+            normal[0] = normal[1] = normal[2] = 0;
+            // Visit the squares row by row.
+            if (i > 0 && j > 0) {
+                addTriangleNormal(i - 1, j - 1, false, normal);
+            }
+            if (i > 0 && j < N - 1) {
+                addTriangleNormal(i - 1, j, true, normal);
+                addTriangleNormal(i - 1, j, false, normal);
+            }
+            if (i < M - 1 && j > 0) {
+                addTriangleNormal(i, j - 1, true, normal);
+                addTriangleNormal(i, j - 1, false, normal);
+            }
+            if (i < M - 1 && j < N - 1) {
+                addTriangleNormal(i, j, true, normal);
+            }
+        }
+
+        /**
+         * Adds the normal of a triangle in the square with bottom left vertex
+         * (i, j) to {@code normal}.
+         *
+         * @param i the index of the square in x direction
+         * @param j the index of the square in y direction
+         * @param bottom if true, use the bottom left triangle. If false, use
+         * the upper right triangle.
+         * @param normal the normal to add to
+         */
+        private void addTriangleNormal(int i, int j, boolean bottom,
+                double[] normal) {
+            // Compute the vectors from the upper left vertex to the others.
+            double ulx = x(i), uly = y(j + 1), ulz = height(i, j + 1);
+            double diagx = x(i + 1) - ulx,
+                    diagy = y(j) - uly,
+                    diagz = height(i + 1, j) - ulz;
+            double ax, ay, az, bx, by, bz; // triangle normal is a x b
+            if (bottom) {
+                // Compute down x diag.
+                ax = x(i) - ulx;
+                ay = y(j) - uly;
+                az = height(i, j) - ulz;
+                bx = diagx;
+                by = diagy;
+                bz = diagz;
+            } else {
+                // Compute diag x right.
+                ax = diagx;
+                ay = diagy;
+                az = diagz;
+                bx = x(i + 1) - ulx;
+                by = y(j + 1) - uly;
+                bz = height(i + 1, j + 1) - ulz;
+            }
+            normal[0] += ay * bz - az * by;
+            normal[1] += az * bx - ax * bz;
+            normal[2] += ax * by - ay * bx;
         }
     }
 
     /**
-     * Implementation of Curve that models a Bezier curve.
-     *
-     * This class will use N control points to model Bezier segments. Each
-     * segment is described by P[i], P[i+1], P[i+2], P[i+3] where i is a
-     * multiple of 3. This means that segments are linked together. The last
-     * control point does not need to be the same as the first control point.
-     *
-     * The available range [0,1] is split up equally between each segment. This
-     * means that each sequence, independent of size, will be drawn with the
-     * same precision. It also means that speed of the curve can vary.
+     * Stores height fields in binary cache files.
      *
-     * Points that do not form a full segment will be ignored. For example, if 5
-     * points are specified, the first four will be used to form a segment and
-     * the last will be ignored.
+     * A cache file consists of a header followed by the heights and normals
+     * as floats in the native byte order. The header contains a magic number
+     * (which also detects a different byte order), a format version, the
+     * dimensions of the grid, the key of the cached terrain and a CRC32
+     * checksum of the data. A file is only used if all of these match. The
+     * header also stores the range of the heights before normalization.
      */
-    public static class BezierCurve implements Curve {
+    public static class HeightFieldCache {
 
-        final private Vector[] P; // control points defining Bezier segments
-        int N; // the number of segments
-        // Bezier curve resembling the letter O.
-        final static public BezierCurve O = new BezierCurve(
-                new Vector(-10, 0, 1),
-                new Vector(-10, 10, 1),
-                new Vector(10, 10, 1),
-                new Vector(10, 0, 1),
-                new Vector(10, -10, 1),
-                new Vector(-10, -10, 1),
-                new Vector(-10, 0, 1));
-        // Bezier curve resembling the letter D.
-        final static public BezierCurve D = new BezierCurve(
-                new Vector(-7, -10, 1),
-                new Vector(-7, -5, 1),
-                new Vector(-7, 5, 1),
-                new Vector(-7, 10, 1),
-                new Vector(-7, 12, 1),
-                new Vector(-5, 15, 1),
-                new Vector(3, 11, 1),
-                new Vector(9, 7, 1),
-                new Vector(9, -13, 1),
-                new Vector(3, -14, 1),
-                new Vector(-5, -15, 1),
-                new Vector(-7, -12, 1),
-                new Vector(-7, -10, 1));
-        // Bezier curve resembling the letter L.
-        final static public BezierCurve L = new BezierCurve(
-                new Vector(4, -11, 1),
-                new Vector(20 / 3, -11, 1),
-                new Vector(28 / 3, -11, 1),
-                new Vector(12, -11, 1),
-                new Vector(13, -11, 1),
-                new Vector(13, -12, 1),
-                new Vector(12, -12, 1),
-                new Vector(8, -12, 1),
-                new Vector(4, -12, 1),
-                new Vector(-9, -12, 1),
-                new Vector(-13, -12, 1),
-                new Vector(-13, -12, 1),
-                new Vector(-13, 1, 1),
-                new Vector(-13, 5, 1),
-                new Vector(-13, 9, 1),
-                new Vector(-13, 13, 1),
-                new Vector(-13, 14, 1),
-                new Vector(-12, 14, 1),
-                new Vector(-12, 13, 1),
-                new Vector(-12, 10, 1),
-                new Vector(-12, 8, 1),
-                new Vector(-12, 5, 1),
-                new Vector(-12, -11, 1),
-                new Vector(-12, -11, 1),
-                new Vector(4, -11, 1));
-        // Customly defined Bezier curve.
-        final static public BezierCurve custom = new BezierCurve(
-                new Vector(-10, 0, 1),
-                new Vector(-10, 10, 5),
-                new Vector(10, 10, 1),
-                new Vector(10, 0, 5),
-                new Vector(10, -10, 9),
-                new Vector(-10, -10, -3),
-                new Vector(-10, 0, 1));
+        final static private int MAGIC = 0x52525446; // "RRTF"
+        final static private int VERSION = 3; // version of the file format
+        final static private int HEADER = 48; // size of the header in bytes
 
         /**
-         * Constructs a Bezier curve from the specified control points.
+         * Loads a height field from a cache file. The file is mapped into
+         * memory, such that the buffers of the height field refer to the file
+         * directly. Changes to the height field are not written to the file.
          *
-         * @param points control points
+         * @param file the cache file
+         * @param key the key of the terrain
+         * @param M number of lines in x direction
+         * @param N number of lines in y direction
+         * @param min minimum value for the x and y coordinates
+         * @param max maximum value for the x and y coordinates
+         * @return the height field, or null if the file does not exist or is
+         * invalid
          */
-        public BezierCurve(Vector... points) {
-            this.P = points;
-            N = (points.length - 1) / 3;
+        public static HeightField load(File file, long key, int M, int N,
+                float min, float max) {
+            if (!file.isFile()) {
+                return null;
+            }
+            try {
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    FileChannel channel = raf.getChannel();
+                    long size = HEADER + 16L * M * N;
+                    if (channel.size() != size) {
+                        throw new IOException("Unexpected size " + channel.size());
+                    }
+                    ByteBuffer buffer = channel.map(FileChannel.MapMode.PRIVATE,
+                            0, size).order(ByteOrder.nativeOrder());
+                    if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+                            || buffer.getInt(8) != M || buffer.getInt(12) != N
+                            || buffer.getLong(16) != key) {
+                        throw new IOException("Header does not match");
+                    }
+                    buffer.position(HEADER);
+                    ByteBuffer data = buffer.slice().order(ByteOrder.nativeOrder());
+                    if (buffer.getLong(24) != checksum(data)) {
+                        throw new IOException("Checksum does not match");
+                    }
+                    data.limit(4 * M * N);
+                    FloatBuffer heights = data.slice()
+                            .order(ByteOrder.nativeOrder()).asFloatBuffer();
+                    data.limit(data.capacity()).position(4 * M * N);
+                    FloatBuffer normals = data.slice()
+                            .order(ByteOrder.nativeOrder()).asFloatBuffer();
+                    HeightField field = new HeightField(M, N, min, max,
+                            heights, normals);
+                    field.low = buffer.getDouble(32);
+                    field.high = buffer.getDouble(40);
+                    return field;
+                } finally {
+                    raf.close();
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(RobotRace.class.getName()).log(Level.WARNING,
+                        "Ignoring invalid terrain cache " + file, ex);
+                return null;
+            }
         }
 
-        @Override
-        public Vector getPoint(double t) {
-            t = t % 1; // normalize t to range [0,1]
-            /*
-             * For each segment, we need to find a value to fill into
-             * the function. For this, we simply multiply by the number of
-             * segments, and then normalize. This is a way to cover all segments.
-             */
-            double s = (t * N) % 1; // value to fill into the Bezier function
-            /*
-             * From t, we can derive in which segment the point should lie.
-             * For this, we simply multiply by the number of segments and then
-             * round half down.
-             */
-            int i = 3 * (int) (t * N); // the first point of the segment
-            return getCubicBezierPnt(s, P[i], P[i + 1], P[i + 2], P[i + 3]);
+        /**
+         * Saves a height field to a cache file. The data is first written to
+         * a temporary file, which then replaces the cache file, such that an
+         * interrupted write does not leave a partial cache file behind.
+         *
+         * @param file the cache file
+         * @param key the key of the terrain
+         * @param field the height field
+         */
+        public static void save(File file, long key, HeightField field) {
+            File temp = new File(file.getPath() + ".tmp");
+            try {
+                RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+                try {
+                    long size = HEADER + 16L * field.M * field.N;
+                    raf.setLength(size);
+                    ByteBuffer buffer = raf.getChannel().map(
+                            FileChannel.MapMode.READ_WRITE, 0, size)
+                            .order(ByteOrder.nativeOrder());
+                    buffer.putInt(0, MAGIC);
+                    buffer.putInt(4, VERSION);
+                    buffer.putInt(8, field.M);
+                    buffer.putInt(12, field.N);
+                    buffer.putLong(16, key);
+                    buffer.putDouble(32, field.low);
+                    buffer.putDouble(40, field.high);
+                    buffer.position(HEADER);
+                    ByteBuffer data = buffer.slice().order(ByteOrder.nativeOrder());
+                    FloatBuffer floats = data.asFloatBuffer();
+                    floats.put(field.heights.duplicate());
+                    floats.put(field.normals.duplicate());
+                    buffer.putLong(24, checksum(data));
+                } finally {
+                    raf.close();
+                }
+                if (file.exists() && !file.delete()
+                        || !temp.renameTo(file)) {
+                    throw new IOException("Could not replace " + file);
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(RobotRace.class.getName()).log(Level.WARNING,
+                        "Could not write terrain cache " + file, ex);
+                temp.delete();
+            }
         }
 
-        @Override
-        public Vector getTangent(double t) {
-            t = t % 1; // normalize t to range [0,1]
-            double s = (t * N) % 1; // value to fill into the Bezier function
-            int i = 3 * (int) (t * N); // the first point of the segment
-            return getCubicBezierTng(s, P[i], P[i + 1], P[i + 2], P[i + 3]);
+        /**
+         * Computes the CRC32 checksum of the remaining bytes of a buffer,
+         * without changing its position.
+         */
+        private static long checksum(ByteBuffer data) {
+            CRC32 crc = new CRC32();
+            ByteBuffer view = data.duplicate();
+            byte[] chunk = new byte[1 << 16];
+            while (view.hasRemaining()) {
+                int length = min(chunk.length, view.remaining());
+                view.get(chunk, 0, length);
+                crc.update(chunk, 0, length);
+            }
+            return crc.getValue();
         }
 
-        @Override
-        public Vector getNormalVector(double t) {
-            Vector tangent = this.getTangent(t);
-            // Rotate 90 degrees in negative direction (outward) in XOY plane.
-            return new Vector(-tangent.y(), tangent.x(), 0);
+        /**
+         * Scrambles the bits of a value (the finalizer of SplitMix64), such
+         * that similar values get very different hashes.
+         */
+        public static long mix(long z) {
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            return z ^ (z >>> 31);
         }
+    }
+
+    /**
+     * Interface for an action that is performed on a range of rows of a grid.
+     * Implementations should only write to the rows they are given, such that
+     * different ranges can be processed at the same time.
+     */
+    public interface RowAction {
 
         /**
-         * Calculates a point on a Bezier segment defined by P0, P1, P2, P3.
+         * Performs the action on the rows [from, to).
          *
-         * @param t the parameter of the function (in range [0,1])
-         * @param P0 first control point
-         * @param P1 second control point
-         * @param P2 third control point
-         * @param P3 fourth control point
-         * @return point on the curve for parameter t
+         * @param from the first row
+         * @param to the row after the last row
          */
-        public static Vector getCubicBezierPnt(double t, Vector P0, Vector P1,
-                Vector P2, Vector P3) {
-            return P0.scale(pow(1 - t, 3)).add(
-                    P1.scale(3 * t * pow(1 - t, 2))).add(
-                    P2.scale(3 * pow(t, 2) * (1 - t))).add(
-                    P3.scale(pow(t, 3)));
+        public void rows(int from, int to);
+    }
 
-        }
+    /**
+     * Fork-join task that performs a RowAction on a range of rows. Ranges that
+     * are larger than a threshold are split in two halves that are processed
+     * in parallel.
+     */
+    public static class RowTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        // Pool that is shared by all row tasks.
+        final static public ForkJoinPool POOL = new ForkJoinPool();
+        final static private int THRESHOLD = 4; // maximum rows per task
+        final private RowAction action; // action to perform on the rows
+        final private int from; // first row
+        final private int to; // row after the last row
 
         /**
-         * Calculates a tangent on a Bezier segment defined by P0, P1, P2, P3.
+         * Constructs a task for the rows [from, to).
          *
-         * @param t the parameter of the function (in range [0,1])
-         * @param P0 first control point
-         * @param P1 second control point
-         * @param P2 third control point
-         * @param P3 fourth control point
-         * @return tangent of the curve on point for parameter t
+         * @param action the action to perform
+         * @param from the first row
+         * @param to the row after the last row
          */
-        public static Vector getCubicBezierTng(double t, Vector P0, Vector P1,
-                Vector P2, Vector P3) {
-            return P1.subtract(P0).scale(pow(1 - t, 2)).add(
-                    P2.subtract(P1).scale(2 * t * (1 - t))).add(
-                    P3.subtract(P2).scale(pow(t, 2))).scale(3);
+        public RowTask(RowAction action, int from, int to) {
+            this.action = action;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= THRESHOLD) {
+                action.rows(from, to);
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new RowTask(action, from, mid),
+                        new RowTask(action, mid, to));
+            }
         }
     }
 
     /**
-     * Class representing a matrix.
+     * A class representing a bump.
      */
-    public static class Matrix {
+    public static class Bump {
 
-        double[][] numbers; // stores the numbers in the matrix
+        // Coefficients of B from q^0 up to q^9, for other implementations of
+        // the shape, see BumpKernel.
+        final static double[] SHAPE = {1.0, -2.4674011002723395,
+            2.029356063208384, -0.6676313844272946, 0.11766531517944656,
+            -0.012903445695007025, 0.000964787154701961,
+            -5.2319052462422825e-05, 2.151534793516472e-06,
+            -6.93947623110688e-08};
+        private double center_x;
+        private double center_y;
+        private double height;
+        private double radius;
 
         /**
-         * Construct a matrix.
+         * Constructs a bump with the desired parameters.
          *
-         * @param numbers numbers in the matrix
+         * @param center_x The x coordinate for the center of the bump.
+         * @param center_y The y coordinate for the center of the bump.
+         * @param height The height of the bump.
+         * @param radius The radius of the bump.
          */
-        public Matrix(double[][] numbers) {
-            this.numbers = numbers;
+        public Bump(double center_x, double center_y, double height, double radius) {
+            this.center_x = center_x;
+            this.center_y = center_y;
+            this.height = height;
+            this.radius = radius;
         }
 
         /**
-         * Returns the result of the matrix-vector multiplication of
-         * {@code this} and {@code v}.
+         * Generates random bumps on the terrain, with heights in [-1,1] and
+         * radii up to 3.
          *
-         * @param v the vector
-         * @return the result of the multiplication
+         * @param count the number of bumps
+         * @param seed seed of the random numbers
+         * @return the bumps
          */
-        public Vector times(Vector v) {
-            Vector h1 = new Vector(numbers[0][0], numbers[0][1], numbers[0][2]);
-            double x = v.dot(h1); // dot product of first row and vector v
-
-            Vector h2 = new Vector(numbers[1][0], numbers[1][1], numbers[1][2]);
-            double y = v.dot(h2); // dot product of second row and vector v
-
-            Vector h3 = new Vector(numbers[2][0], numbers[2][1], numbers[2][2]);
-            double z = v.dot(h3); // dot product of third row and vector v
-
-            return new Vector(x, y, z);
+        public static Bump[] random(int count, long seed) {
+            Bump[] bumps = new Bump[count];
+            Random generator = new Random(seed);
+            for (int i = 0; i < count; i++) {
+                // Generate a center coordinate for the bump.
+                double center_x = (generator.nextDouble() * 40) - 20;
+                double center_y = (generator.nextDouble() * 40) - 20;
+                // Generate a (extreme) height for the bump.
+                double height = (generator.nextDouble() * 2) - 1;
+                // Generate a radius for the bump.
+                double radius = generator.nextDouble() * 3;
+                // Define this bump.
+                bumps[i] = new Bump(center_x, center_y, height, radius);
+            }
+            return bumps;
         }
 
         /**
-         * Calculates the transposed matrix, that is, a matrix with the indices
-         * reversed.
+         * Returns the contribution to the height for a given coordinate on the
+         * plane from this bump.
          *
-         * @return the transposed matrix
+         * @param x The x coordinate.
+         * @param y The y coordinate.
+         * @return Contribution to the height for this bump.
          */
-        public Matrix transposed() {
-            double[][] result = new double[numbers.length][numbers.length];
+        public double summand(double x, double y) {
+            double q = ((x - center_x) * (x - center_x) + (y - center_y) * (y - center_y)) / (radius * radius);
+            return ((q < 1) ? height * B(q) : 0);
+        }
 
-            for (int i = 0; i < numbers.length; i++) {
-                for (int j = 0; j < numbers.length; j++) {
-                    result[j][i] = numbers[i][j];
-                }
-            }
-            return new Matrix(result);
+        /**
+         * Defines the shape of a bump, as described in the assignment, in
+         * terms of the squared relative distance q = r^2 to the center with
+         * 0 <= q <= 1.
+         *
+         * Since cos^2(PI/2 r) = (1 + cos(PI sqrt(q))) / 2 and the Taylor
+         * series of cos(PI sqrt(q)) only has integer powers of q, the shape
+         * is a polynomial in q without a square root. The series is cut off
+         * after q^9. Its terms alternate and decrease, so the error is at
+         * most the next term: PI^20 / 20! / 2 < 2e-9. SHAPE holds the same
+         * coefficients.
+         */
+        static double B(double q) {
+            return 1.0 + q * (-2.4674011002723395 + q * (2.029356063208384
+                    + q * (-0.6676313844272946 + q * (0.11766531517944656
+                    + q * (-0.012903445695007025 + q * (0.000964787154701961
+                    + q * (-5.2319052462422825e-05 + q * (2.151534793516472e-06
+                    + q * -6.93947623110688e-08))))))));
         }
     }
 
     /**
-     * Calculates a transformation matrix that rotates over an angle {@code phi}
-     * around the Z axis and then over an angle {@code theta} around the y axis.
-     *
-     * @param phi phi angle mentioned above
-     * @param theta theta angle mentioned above
-     * @return the transformation matrix
+     * Adds the shape of one bump to a range of vertices of a row.
      */
-    public static Matrix eyeToWorldMatrix(float phi, float theta) {
-        double[][] worldToEyeMatrix = {
-            {cos(phi) * cos(theta), -sin(phi), -cos(phi) * sin(theta)},
-            {sin(phi) * cos(theta), cos(phi), -sin(phi) * sin(theta)},
-            {sin(theta), 0, cos(theta)}
-        };
-        return new Matrix(worldToEyeMatrix);
+    public interface BumpKernel {
+
+        /**
+         * Adds h * Bump.B(dq + (ys[k] - yb)^2 * scale) to out[k], for
+         * from <= k <= to.
+         *
+         * @param yb the y coordinate of the center of the bump
+         * @param h the height of the bump
+         * @param dq the squared x distance of the row to the center, divided
+         * by the squared radius
+         * @param scale 1 divided by the squared radius
+         * @param ys the y coordinates of the vertices
+         * @param out the heights of the vertices
+         * @param from the first vertex
+         * @param to the last vertex
+         */
+        public void add(double yb, double h, double dq, double scale,
+                double[] ys, double[] out, int from, int to);
     }
 
     /**
-     * Represents the terrain.
+     * The bumps of a terrain stored as packed arrays, to evaluate the heights
+     * of a whole row of vertices at once.
+     *
+     * Instead of summing all bumps for each vertex, every bump adds its
+     * shape to the vertices of the row that lie within its radius, using a
+     * BumpKernel. If the Vector API kernel in src-vector is compiled and the
+     * jdk.incubator.vector module is present, it is used; otherwise the
+     * scalar kernel is used. Both give exactly the same heights.
+     *
+     * A row only visits the bumps that overlap the column of cells of the
+     * BumpGrid that it crosses. The packed arrays and the bumps per column
+     * are kept up to date by add and remove, such that editing a bump does
+     * not require packing all bumps again.
      */
-    public class Terrain {
+    public static class BumpRows {
 
-        private Set<Bump> bumps; // The bumps which influence the height.
-        private Vector[][] points = new Vector[M][N];
-        Vector[][] normals = new Vector[M][N]; // normal for each vertex
-        final static private float MIN = -20; // minimum value for the x and y coordinates.
-        final static private float MAX = 20; // maximum value for the x and y coordinates.
-        final static private int M = 200; // number of lines in x direction
-        final static private int N = 200; // number of lines in y direction
+        // Adds the shape of a bump one vertex at a time.
+        final static public BumpKernel SCALAR = new BumpKernel() {
+            @Override
+            public void add(double yb, double h, double dq, double scale,
+                    double[] ys, double[] out, int from, int to) {
+                for (int k = from; k <= to; k++) {
+                    double d = ys[k] - yb;
+                    out[k] += h * Bump.B(dq + d * d * scale);
+                }
+            }
+
+            @Override
+            public String toString() {
+                return "scalar";
+            }
+        };
+        // The fastest kernel that is available.
+        final static public BumpKernel KERNEL = kernel();
+        final private BumpKernel kernel; // kernel that adds the bumps
+        final private BumpGrid grid; // grid whose columns split up the bumps
+        private int count = 0; // number of bumps
+        private double[] x; // x coordinate of the center of each bump
+        private double[] y; // y coordinate of the center of each bump
+        private double[] height; // height of each bump
+        private double[] radius2; // squared radius of each bump
+        private Bump[] packed; // the bump stored in each slot
+        // Slot of each bump in the packed arrays.
+        final private Map<Bump, Integer> slots = new HashMap<Bump, Integer>();
+        final private int[][] columns; // slots of the bumps per column
+        final private int[] sizes; // number of slots used in each column
 
         /**
-         * Constructs a terrain with the given parameters.
+         * Packs the specified bumps, to be added with the fastest kernel.
          *
-         * @param bumps The bumps which are contained in the terrain.
+         * @param grid the grid whose columns the bumps are split up by
+         * @param bumps the bumps to pack
          */
-        public Terrain(Bump... bumps) {
-            this.bumps = new HashSet(Arrays.asList(bumps));
+        public BumpRows(BumpGrid grid, Collection<Bump> bumps) {
+            this(grid, bumps, KERNEL);
         }
 
         /**
-         * Calculates the z coordinate for a point in the XOY plane.
+         * Packs the specified bumps.
          *
-         * @param x The x coordinate of the point.
-         * @param y The y coordinate of the point.
-         * @return The z coordinate of the point.
+         * @param grid the grid whose columns the bumps are split up by
+         * @param bumps the bumps to pack
+         * @param kernel the kernel that adds the bumps to a row
          */
-        public double z(double x, double y) {
-            float sum = 0;
+        public BumpRows(BumpGrid grid, Collection<Bump> bumps,
+                BumpKernel kernel) {
+            this.kernel = kernel;
+            this.grid = grid;
+            int capacity = max(16, bumps.size());
+            x = new double[capacity];
+            y = new double[capacity];
+            height = new double[capacity];
+            radius2 = new double[capacity];
+            packed = new Bump[capacity];
+            columns = new int[grid.cells][];
+            sizes = new int[grid.cells];
+            for (int i = 0; i < grid.cells; i++) {
+                columns[i] = new int[4];
+            }
             for (Bump b : bumps) {
-                sum += b.summand(x, y);
+                add(b);
             }
-            return sum;
         }
 
         /**
-         * Precalculates the vertices of the terrain and places them in a
-         * display list.
+         * Adds a bump to the packed arrays and to the columns it overlaps.
+         *
+         * @param b the bump to add
          */
-        private void precalculate() {
-            float l = MAX - MIN; // the length of the terrain
-            float w = l / (float) M; // the width of a quad
-            float h = l / (float) N; // the height of a quad
-
-            // Computes the vertices.
-            for (int i = 0; i < M; i++) {
-                for (int j = 0; j < N; j++) {
-                    double x = MIN + i * w;
-                    double y = MIN + j * h;
-                    double z = z(x, y);
-                    points[i][j] = new Vector(x, y, z);
-                }
+        public void add(Bump b) {
+            if (count == x.length) {
+                int capacity = 2 * count;
+                x = Arrays.copyOf(x, capacity);
+                y = Arrays.copyOf(y, capacity);
+                height = Arrays.copyOf(height, capacity);
+                radius2 = Arrays.copyOf(radius2, capacity);
+                packed = Arrays.copyOf(packed, capacity);
             }
-
-            normalize(); // map all z coordinates to interval [-1,1]
-
-            // Intitalize all normals to be 0.
-            for (int i = 0; i < M; i++) {
-                for (int j = 0; j < N; j++) {
-                    normals[i][j] = Vector.O;
+            int s = count++;
+            x[s] = b.center_x;
+            y[s] = b.center_y;
+            height[s] = b.height;
+            radius2[s] = b.radius * b.radius;
+            packed[s] = b;
+            slots.put(b, s);
+            for (int i = grid.low(b.center_x, b.radius); i <= grid.high(b.center_x, b.radius); i++) {
+                if (sizes[i] == columns[i].length) {
+                    columns[i] = Arrays.copyOf(columns[i], 2 * sizes[i]);
                 }
+                columns[i][sizes[i]++] = s;
             }
+        }
 
-            // Computes the normal for each vertex.
-            for (int i = 0; i < M - 1; i++) {
-                for (int j = 0; j < N - 1; j++) {
-                    // For each square:
-                    Vector bl = points[i][j]; // bottom left vertex
-                    Vector br = points[i + 1][j]; // bottom right vertex
-                    Vector ur = points[i + 1][j + 1]; // upper right vertex
-                    Vector ul = points[i][j + 1]; // upper left vertex
-
-                    Vector diag = br.subtract(ul);
-                    Vector down = bl.subtract(ul);
-                    Vector right = ur.subtract(ul);
-
-                    Vector normal1 = down.cross(diag); // normal for bottom left triangle
-                    Vector normal2 = diag.cross(right); // normal for upper right triangle
-
-                    // Add the normals to the vertices that are part of the
-                    // triangle. For the bottom left and upper right vertices,
-                    // this is the first and second normal respectively. For the
-                    // other vertices, it is both.
-                    normals[i][j] = normals[i][j].add(normal1);
-                    normals[i][(j + 1)] = normals[i][(j + 1)].add(normal1).add(normal2);
-                    normals[(i + 1)][j] = normals[(i + 1)][j].add(normal1).add(normal2);
-                    normals[(i + 1)][(j + 1)] = normals[(i + 1)][(j + 1)].add(normal2);
+        /**
+         * Removes a bump. The last bump is moved into its slot, such that the
+         * packed arrays stay without gaps.
+         *
+         * @param b the bump to remove
+         */
+        public void remove(Bump b) {
+            Integer slot = slots.remove(b);
+            if (slot == null) {
+                return;
+            }
+            int s = slot, last = --count;
+            for (int i = grid.low(b.center_x, b.radius); i <= grid.high(b.center_x, b.radius); i++) {
+                int k = indexOf(i, s);
+                columns[i][k] = columns[i][--sizes[i]];
+            }
+            if (s != last) {
+                Bump moved = packed[last];
+                x[s] = x[last];
+                y[s] = y[last];
+                height[s] = height[last];
+                radius2[s] = radius2[last];
+                packed[s] = moved;
+                slots.put(moved, s);
+                for (int i = grid.low(moved.center_x, moved.radius); i <= grid.high(moved.center_x, moved.radius); i++) {
+                    columns[i][indexOf(i, last)] = s;
                 }
             }
+            packed[last] = null;
+        }
 
-            // Draw the triangles using a disply list.
-            gl.glNewList(1, GL_COMPILE);
-            setMaterial(Material.WHITE);
-            // Set the texture.
-            landscape.enable(gl);
-            landscape.bind(gl);
-
-            Vector bl_normal, br_normal, ur_normal, ul_normal; // normals
-            gl.glPushMatrix();
-            gl.glBegin(GL_TRIANGLES);
-            for (int i = 0; i < M - 1; i++) {
-                for (int j = 0; j < N - 1; j++) {
-                    // For each square:
-                    Vector bl = points[i][j]; // bottom left vertex
-                    Vector br = points[i + 1][j]; // bottom right vertex
-                    Vector ur = points[i + 1][j + 1]; // upper right vertex
-                    Vector ul = points[i][j + 1]; // upper left vertex
-
-                    bl_normal = normals[i][j];
-                    br_normal = normals[i + 1][j];
-                    ur_normal = normals[i + 1][j + 1];
-                    ul_normal = normals[i][j + 1];
-
-                    // Calls for bottom left triangle.
-                    gl.glNormal3d(bl_normal.x(), bl_normal.y(), bl_normal.z());
-                    gl.glTexCoord1d(textureCoord(bl.z()));
-                    glVertex(bl);
-                    gl.glNormal3d(br_normal.x(), br_normal.y(), br_normal.z());
-                    gl.glTexCoord1d(textureCoord(br.z()));
-                    glVertex(br);
-                    gl.glNormal3d(ul_normal.x(), ul_normal.y(), ul_normal.z());
-                    gl.glTexCoord1d(textureCoord(ul.z()));
-                    glVertex(ul);
+        /**
+         * Finds the position of a slot in the list of a column.
+         */
+        private int indexOf(int column, int slot) {
+            int k = 0;
+            while (columns[column][k] != slot) {
+                k++;
+            }
+            return k;
+        }
 
-                    // Calls for upper right triangle.
-                    gl.glNormal3d(br_normal.x(), br_normal.y(), br_normal.z());
-                    gl.glTexCoord1d(textureCoord(br.z()));
-                    glVertex(br);
-                    gl.glNormal3d(ur_normal.x(), ur_normal.y(), ur_normal.z());
-                    gl.glTexCoord1d(textureCoord(ur.z()));
-                    glVertex(ur);
-                    gl.glNormal3d(ul_normal.x(), ul_normal.y(), ul_normal.z());
-                    gl.glTexCoord1d(textureCoord(ul.z()));
-                    glVertex(ul);
+        /**
+         * Computes the sum of the bumps in the points (px, y0 + k * dy) for
+         * 0 <= k < out.length.
+         *
+         * @param px the x coordinate of the row
+         * @param y0 the y coordinate of the first point
+         * @param dy the distance between two points
+         * @param ys scratch array of at least the length of out
+         * @param out array to store the heights in
+         */
+        public void row(double px, double y0, double dy, double[] ys,
+                double[] out) {
+            Arrays.fill(out, 0);
+            // Computing the y coordinates up front keeps the conversion of k
+            // out of the inner loop, which is then vectorized by the JIT.
+            for (int k = 0; k < out.length; k++) {
+                ys[k] = y0 + k * dy;
+            }
+            if (px < grid.min || px > grid.max) {
+                // The row lies outside of the grid; visit all bumps.
+                for (int s = 0; s < count; s++) {
+                    add(s, px, y0, dy, ys, out);
+                }
+            } else {
+                int i = grid.low(px, 0); // the column the row crosses
+                int[] column = columns[i];
+                for (int k = 0; k < sizes[i]; k++) {
+                    add(column[k], px, y0, dy, ys, out);
                 }
             }
-            gl.glEnd();
-            gl.glPopMatrix();
+        }
 
-            landscape.disable(gl);
+        /**
+         * Adds the bump in slot b to the heights of a row, see row.
+         */
+        private void add(int b, double px, double y0, double dy, double[] ys,
+                double[] out) {
+            double dx2 = (px - x[b]) * (px - x[b]);
+            if (dx2 >= radius2[b]) {
+                return; // the row does not cross this bump
+            }
+            // The points within the radius lie in [y - half, y + half].
+            double half = sqrt(radius2[b] - dx2);
+            int from = max(0, (int) ceil((y[b] - half - y0) / dy));
+            int to = min(out.length - 1, (int) floor((y[b] + half - y0) / dy));
+            double scale = 1 / radius2[b];
+            kernel.add(y[b], height[b], dx2 * scale, scale, ys, out, from, to);
+        }
 
-            drawWater(); // draw transparent water layer
-            gl.glEndList();
+        /**
+         * Loads the Vector API kernel, or returns SCALAR if it was not
+         * compiled or the jdk.incubator.vector module is absent.
+         */
+        private static BumpKernel kernel() {
+            try {
+                return (BumpKernel) Class.forName("VectorBumpKernel")
+                        .getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                return SCALAR;
+            }
         }
 
         /**
-         * Draws the triangles from the display list.
+         * Measures the kernels. For each number of random bumps, it prints
+         * the time to compute all rows of a 200x200 terrain with the scalar
+         * kernel and with KERNEL, and the largest difference between them.
+         *
+         * @param args the numbers of bumps (default 500 10000 100000)
          */
-        public void draw() {
-            gl.glCallList(1);
+        public static void main(String[] args) {
+            int[] counts = {500, 10000, 100000};
+            if (args.length > 0) {
+                counts = new int[args.length];
+                for (int k = 0; k < args.length; k++) {
+                    counts[k] = Integer.parseInt(args[k]);
+                }
+            }
+            int n = 200; // vertices in each direction
+            double step = 40.0 / (n - 1); // distance between the vertices
+            System.out.println("KERNEL is " + KERNEL);
+            for (int count : counts) {
+                Bump[] bumps = Bump.random(count, 0);
+                BumpGrid grid = new BumpGrid(-20, 20, bumps);
+                BumpKernel[] kernels = {SCALAR, KERNEL};
+                double[][][] heights = new double[2][n][n];
+                double[] times = new double[2]; // best time of each kernel
+                for (int kind = 0; kind < 2; kind++) {
+                    BumpRows rows = new BumpRows(grid, Arrays.asList(bumps),
+                            kernels[kind]);
+                    double[] ys = new double[n];
+                    times[kind] = Double.MAX_VALUE;
+                    for (int run = 0; run < 10; run++) {
+                        long start = System.nanoTime();
+                        for (int i = 0; i < n; i++) {
+                            rows.row(-20 + i * step, -20, step, ys,
+                                    heights[kind][i]);
+                        }
+                        times[kind] = min(times[kind],
+                                (System.nanoTime() - start) / 1e6);
+                    }
+                }
+                double difference = 0;
+                for (int i = 0; i < n; i++) {
+                    for (int j = 0; j < n; j++) {
+                        difference = max(difference,
+                                abs(heights[0][i][j] - heights[1][i][j]));
+                    }
+                }
+                System.out.printf("%6d bumps: scalar %7.2f ms, KERNEL %7.2f ms,"
+                        + " difference %.1e%n", count, times[0], times[1],
+                        difference);
+            }
         }
+    }
+
+    /**
+     * Uniform grid over the square [min,max] x [min,max] that stores for each
+     * cell the bumps whose support (the disk around their center with their
+     * radius) overlaps that cell. A bump that spans multiple cells is stored in
+     * each of them, so every bump appears at most once in a single cell.
+     */
+    public static class BumpGrid {
+
+        final static private Bump[] EMPTY = new Bump[0]; // for empty cells
+        final static private int MAXCELLS = 256; // upper bound for cells per axis
+        final private double min; // minimum x and y coordinate of the grid
+        final private double max; // maximum x and y coordinate of the grid
+        final private int cells; // number of cells in x and y direction
+        final private double size; // width and height of a cell
+        final private Bump[][] grid; // bumps per cell, indexed by cell(i, j)
 
         /**
-         * Draws a gray transparent polygon to simulate a water surface.
+         * Constructs a grid over the specified square containing the bumps.
+         *
+         * The number of cells is chosen such that a cell contains a constant
+         * number of bump centers on average, but cells are never made smaller
+         * than the average bump radius. Smaller cells would only store the
+         * same bumps in more cells.
+         *
+         * @param min minimum x and y coordinate of the grid
+         * @param max maximum x and y coordinate of the grid
+         * @param bumps the bumps to store in the grid
          */
-        private void drawWater() {
-            setMaterial(Material.WATER_SURFACE);
-            gl.glBegin(GL_QUADS);
-            gl.glVertex3d(-20, -20, -0.01);
-            gl.glVertex3d(-20, 20, -0.01);
-            gl.glVertex3d(20, 20, -0.01);
-            gl.glVertex3d(20, -20, -0.01);
-            gl.glEnd();
+        public BumpGrid(double min, double max, Bump... bumps) {
+            this.min = min;
+            this.max = max;
+            double radius = 0; // average radius of the bumps
+            for (Bump b : bumps) {
+                radius += b.radius / bumps.length;
+            }
+            int n = (int) sqrt(bumps.length); // cells for constant density
+            if (radius > 0) {
+                n = min(n, (int) ((max - min) / radius));
+            }
+            this.cells = max(1, min(MAXCELLS, n));
+            this.size = (max - min) / cells;
+            this.grid = new Bump[cells * cells][];
+
+            // Count the number of bumps in each cell first, such that every
+            // cell can be filled with an array of exactly the right length.
+            int[] count = new int[cells * cells];
+            for (Bump b : bumps) {
+                for (int i = low(b.center_x, b.radius); i <= high(b.center_x, b.radius); i++) {
+                    for (int j = low(b.center_y, b.radius); j <= high(b.center_y, b.radius); j++) {
+                        count[cell(i, j)]++;
+                    }
+                }
+            }
+            for (int c = 0; c < grid.length; c++) {
+                grid[c] = (count[c] == 0) ? EMPTY : new Bump[count[c]];
+                count[c] = 0;
+            }
+            for (Bump b : bumps) {
+                for (int i = low(b.center_x, b.radius); i <= high(b.center_x, b.radius); i++) {
+                    for (int j = low(b.center_y, b.radius); j <= high(b.center_y, b.radius); j++) {
+                        int c = cell(i, j);
+                        grid[c][count[c]++] = b;
+                    }
+                }
+            }
         }
 
         /**
-         * Maps the texture coordinate for the z coordinate the interval [-1, 1]
-         * to the interval [0, 1].
+         * Adds a bump to all cells that its support overlaps.
+         *
+         * @param b the bump to add
          */
-        private double textureCoord(double z) {
-            return (z + 1) / 2;
+        public void add(Bump b) {
+            for (int i = low(b.center_x, b.radius); i <= high(b.center_x, b.radius); i++) {
+                for (int j = low(b.center_y, b.radius); j <= high(b.center_y, b.radius); j++) {
+                    int c = cell(i, j);
+                    grid[c] = Arrays.copyOf(grid[c], grid[c].length + 1);
+                    grid[c][grid[c].length - 1] = b;
+                }
+            }
         }
 
         /**
-         * Enforces all z coordinates of the points to lie in [-1,1].
+         * Removes a bump from all cells that its support overlaps. Cells that
+         * do not contain the bump are left unchanged.
+         *
+         * @param b the bump to remove
          */
-        private void normalize() {
-            double zmin = Double.MAX_VALUE, // lowest z coordinate in points
-                    zmax = Double.MIN_VALUE; // highest z coordinate in points
-            // Determine zmin, zmax.
-            for (Vector[] line : points) {
-                for (Vector point : line) {
-                    if (point.z() < zmin) {
-                        zmin = point.z();
+        public void remove(Bump b) {
+            for (int i = low(b.center_x, b.radius); i <= high(b.center_x, b.radius); i++) {
+                for (int j = low(b.center_y, b.radius); j <= high(b.center_y, b.radius); j++) {
+                    int c = cell(i, j);
+                    int k = 0; // position of the bump in the cell
+                    while (k < grid[c].length && grid[c][k] != b) {
+                        k++;
                     }
-                    if (point.z() > zmax) {
-                        zmax = point.z();
+                    if (k == grid[c].length) {
+                        continue; // the bump is not in this cell
                     }
+                    Bump[] remaining = (grid[c].length == 1) ? EMPTY
+                            : new Bump[grid[c].length - 1];
+                    System.arraycopy(grid[c], 0, remaining, 0, k);
+                    System.arraycopy(grid[c], k + 1, remaining, k,
+                            remaining.length - k);
+                    grid[c] = remaining;
                 }
             }
+        }
 
-            for (int i = 0; i < M; i++) {
-                for (int j = 0; j < N; j++) {
-                    double x, y, z;
-                    Vector point = points[i][j];
-                    x = point.x();
-                    y = point.y();
-                    z = point.z();
-                    z = (z - zmin) / (zmax - zmin); // normalize to [0,1]
-                    z = 2 * z - 1; // map to [-1,1]
-                    points[i][j] = new Vector(x, y, z);
-                }
+        /**
+         * Returns the bumps that can contribute to the height in the specified
+         * point. The returned array must not be modified.
+         *
+         * @param x the x coordinate of the point
+         * @param y the y coordinate of the point
+         * @return the bumps overlapping the cell of the point, or null if the
+         * point lies outside of the grid
+         */
+        public Bump[] candidates(double x, double y) {
+            if (x < min || x > max || y < min || y > max) {
+                return null;
             }
+            return grid[cell(clamp((int) ((x - min) / size)),
+                    clamp((int) ((y - min) / size)))];
         }
-    }
 
-    /**
-     * A class representing a bump.
-     */
-    public static class Bump {
+        /**
+         * Computes the index of the first cell overlapped by the interval
+         * [c - r, c + r].
+         */
+        private int low(double c, double r) {
+            return clamp((int) floor((c - r - min) / size));
+        }
 
-        private double center_x;
-        private double center_y;
-        private double height;
-        private double radius;
+        /**
+         * Computes the index of the last cell overlapped by the interval
+         * [c - r, c + r].
+         */
+        private int high(double c, double r) {
+            return clamp((int) floor((c + r - min) / size));
+        }
 
         /**
-         * Constructs a bump with the desired parameters.
-         *
-         * @param center_x The x coordinate for the center of the bump.
-         * @param center_y The y coordinate for the center of the bump.
-         * @param height The height of the bump.
-         * @param radius The radius of the bump.
+         * Restricts a cell coordinate to the range [0, cells - 1].
          */
-        public Bump(double center_x, double center_y, double height, double radius) {
-            this.center_x = center_x;
-            this.center_y = center_y;
-            this.height = height;
-            this.radius = radius;
+        private int clamp(int i) {
+            return max(0, min(cells - 1, i));
         }
 
         /**
-         * Returns the contribution to the height for a given coordinate on the
-         * plane from this bump.
-         *
-         * @param x The x coordinate.
-         * @param y The y coordinate.
-         * @return Contribution to the height for this bump.
+         * Maps the cell coordinates (i, j) to an index in the grid array.
          */
-        public double summand(double x, double y) {
-            double r = (sqrt((x - center_x) * (x - center_x) + (y - center_y) * (y - center_y)) / radius);
-            return height * B(r);
+        private int cell(int i, int j) {
+            return i * cells + j;
         }
 
         /**
-         * Defines the shape of a bump, as described in the assignment.
+         * Measures how the grid scales with the number of bumps. For each
+         * number of random bumps, it prints the time to build the grid and
+         * the time to sum the bumps in all vertices of a 200x200 terrain,
+         * once through the grid like Terrain.z and once over all bumps.
+         *
+         * @param args the numbers of bumps (default 500 1000 10000 100000)
          */
-        private double B(double r) {
-            return ((r < 1) ? pow(cos(0.5 * PI * r), 2) : 0);
+        public static void main(String[] args) {
+            int[] counts = {500, 1000, 10000, 100000};
+            if (args.length > 0) {
+                counts = new int[args.length];
+                for (int k = 0; k < args.length; k++) {
+                    counts[k] = Integer.parseInt(args[k]);
+                }
+            }
+            int n = 200; // vertices in each direction
+            double step = 40.0 / (n - 1); // distance between the vertices
+            for (int count : counts) {
+                Bump[] bumps = Bump.random(count, 0);
+                long start = System.nanoTime();
+                BumpGrid grid = new BumpGrid(-20, 20, bumps);
+                long built = System.nanoTime();
+                double indexed = 0, all = 0; // sums of all heights
+                long visited = 0; // bumps visited through the grid
+                for (int i = 0; i < n; i++) {
+                    for (int j = 0; j < n; j++) {
+                        double x = -20 + i * step, y = -20 + j * step;
+                        for (Bump b : grid.candidates(x, y)) {
+                            indexed += b.summand(x, y);
+                        }
+                        visited += grid.candidates(x, y).length;
+                    }
+                }
+                long summed = System.nanoTime();
+                for (int i = 0; i < n; i++) {
+                    for (int j = 0; j < n; j++) {
+                        double x = -20 + i * step, y = -20 + j * step;
+                        for (Bump b : bumps) {
+                            all += b.summand(x, y);
+                        }
+                    }
+                }
+                long brute = System.nanoTime();
+                System.out.printf("%6d bumps: %3d cells, build %7.2f ms,"
+                        + " grid %8.1f ms (%.1f bumps per vertex),"
+                        + " all bumps %8.1f ms, difference %.1e%n",
+                        count, grid.cells, (built - start) / 1e6,
+                        (summed - built) / 1e6, (double) visited / (n * n),
+                        (brute - summed) / 1e6, abs(indexed - all));
+            }
         }
     }
 
@@ -2701,6 +7274,7 @@ public class RobotRace extends Base {
         gl.glPushMatrix();
         gl.glLoadIdentity();
         setHelicopterCamMode();
+        updateFrustum();
         float[] location = {(float) light.x(), (float) light.y(), (float) light.z(), 0};
         gl.glLightfv(GL_LIGHT0, GL_POSITION, location, 0); //set location of ls0
 